@@ -17,6 +17,8 @@ import java.awt.AWTEvent;
 import java.awt.Color;
 import java.awt.Component;
 import java.awt.Frame;
+import java.awt.Label;
+import java.awt.geom.AffineTransform;
 import java.awt.geom.GeneralPath;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
@@ -28,27 +30,28 @@ import java.io.IOException;
 
 
 public class CombinedGridsPlugin implements PlugIn, DialogListener {
-	private final static String[] colors = 
+	final static String[] colors = 
 		{ "Red", "Green", "Blue", "Magenta", "Cyan", "Yellow", "Orange", 
 		"Black", "White" };
-	private static String color = "Blue";
+	static String color = "Blue";
 	
-	private final static int COMBINED = 0, DOUBLE_LATTICE = 1, LINES = 2,
-			HLINES = 3, CROSSES = 4, POINTS = 5;
-	private final static String[] types = 
+	final static int COMBINED = 0, DOUBLE_LATTICE = 1, LINES = 2,
+			HLINES = 3, CROSSES = 4, POINTS = 5, CYCLOIDS = 6, HEXAGONAL = 7,
+			ISOTROPIC = 8;
+	final static String[] types = 
 		{ "Combined Point", "Double Lattice", "Lines", "Horizontal Lines", 
-		"Crosses", "Points" };
+		"Crosses", "Points", "Cycloids", "Hexagonal Points", "Isotropic Lines" };
 	
-	private static String type = types[COMBINED];
-	private static double areaPerPoint;
+	static String type = types[COMBINED];
+	static double areaPerPoint;
 
 	private final static int ONE_TO_FOUR = 0, ONE_TO_NINE = 1, ONE_TO_SIXTEEN = 2, 
 			ONE_TO_TWENTYFIVE = 3, ONE_TO_THIRTYSIX = 4;
-	private final static String[] ratioChoices = { "1:4", "1:9", "1:16", "1:25", "1:36" };
-	private static String gridRatio = ratioChoices[ONE_TO_FOUR];
-	private final static String[] radiobuttons = 
+	final static String[] ratioChoices = { "1:4", "1:9", "1:16", "1:25", "1:36" };
+	static String gridRatio = ratioChoices[ONE_TO_FOUR];
+	final static String[] radiobuttons = 
 		{ "Random Offset", "Fixed Position", "Manual Input" };
-	private final static int RANDOM = 0, FIXED = 1, MANUAL = 2;
+	final static int RANDOM = 0, FIXED = 1, MANUAL = 2;
 	private String radiochoice = radiobuttons[RANDOM];
 	private final static String[] applyChoices = 
 		{ "One Grid for All Slices", "Different Grids for Each Slice", 
@@ -64,6 +67,10 @@ public class CombinedGridsPlugin implements PlugIn, DialogListener {
 	private final static int[] xstartField = { 10, 11 };
 	private final static int[] ystartField = { 12, 13 };
 	private static boolean showGridSwitch = true;
+	private final static double DEFAULT_MEMORY_LIMIT = 256; // MB
+	private static double memoryLimit = DEFAULT_MEMORY_LIMIT;
+	private Label costLabel;
+	private boolean lightweight;
 
 	private Random random = new Random(System.currentTimeMillis());
 	private ImagePlus imp;
@@ -72,12 +79,17 @@ public class CombinedGridsPlugin implements PlugIn, DialogListener {
 	private int xstart, ystart;
 	private int xstartCoarse, ystartCoarse, coarseGridX, coarseGridY;
 	private int linesV, linesH;
+	private double angle; // in degrees, for Isotropic Lines
 	private double pixelWidth = 1.0, pixelHeight = 1.0;
 	private String units;
 	private String err = "";
 	private Roi[] gridRoiArray;
 	private String[] gridParameterArray;
+	private GridParameters[] gridRecordArray;
 	private int totalSlices;
+	// for hyperstacks, one grid is shared by all channels at each (Z, T) position
+	private boolean hyperstack;
+	private int nSlices;
 	final static String historyWindowTitle = "Grid History";
 	final static String textfileName = "CombinedGridsHistory.txt";
 
@@ -156,8 +168,6 @@ public class CombinedGridsPlugin implements PlugIn, DialogListener {
 	GeneralPath drawCombined() {
 		GeneralPath path = new GeneralPath();
 		float arm = 5;
-		float pointSizeCoarse = 10;
-		float armCoarse = pointSizeCoarse / 2;
 
 		for (int h = 0; h < linesV; h++) {
 			for (int v = 0; v < linesH; v++) {
@@ -171,22 +181,28 @@ public class CombinedGridsPlugin implements PlugIn, DialogListener {
 							(float) (xstart + xstartCoarse * tileWidth  + h * tileWidth);
 					float centerY = 
 							(float) (ystart + ystartCoarse * tileHeight + v * tileHeight);
-
-					// drawing a coarse point by lines
-					path.moveTo(centerX - pointSizeCoarse, centerY - armCoarse);
-					path.lineTo(centerX - pointSizeCoarse, centerY + armCoarse);
-					path.moveTo(centerX + pointSizeCoarse, centerY - 0);
-					path.lineTo(centerX + pointSizeCoarse, centerY + armCoarse);
-					path.moveTo(centerX - armCoarse, centerY - pointSizeCoarse);
-					path.lineTo(centerX + 0,		 centerY - pointSizeCoarse);
-					path.moveTo(centerX - armCoarse, centerY + pointSizeCoarse);
-					path.lineTo(centerX + armCoarse, centerY + pointSizeCoarse);
+					drawCoarsePoint(path, centerX, centerY);
 				}
 			}
 		}
 		return path;
 	}
 	
+	void drawCoarsePoint(GeneralPath path, float centerX, float centerY) {
+		float pointSizeCoarse = 10;
+		float armCoarse = pointSizeCoarse / 2;
+		
+		// drawing a coarse point by lines
+		path.moveTo(centerX - pointSizeCoarse, centerY - armCoarse);
+		path.lineTo(centerX - pointSizeCoarse, centerY + armCoarse);
+		path.moveTo(centerX + pointSizeCoarse, centerY - 0);
+		path.lineTo(centerX + pointSizeCoarse, centerY + armCoarse);
+		path.moveTo(centerX - armCoarse, centerY - pointSizeCoarse);
+		path.lineTo(centerX + 0,		 centerY - pointSizeCoarse);
+		path.moveTo(centerX - armCoarse, centerY + pointSizeCoarse);
+		path.lineTo(centerX + armCoarse, centerY + pointSizeCoarse);
+	}
+	
 	
 	//Drawing curve in this method is the potential problem.	
 	GeneralPath drawDoubleLattice() {
@@ -263,6 +279,128 @@ public class CombinedGridsPlugin implements PlugIn, DialogListener {
 		return path;
 	}
 
+	// Cycloid arcs for vertical sections, whose minor axis is parallel to the
+	// vertical axis of the image. An arc starts at each grid point and spans
+	// a tile, so the length of the test line per point is 4 / PI * tile width.
+	GeneralPath drawCycloids() {
+		GeneralPath path = new GeneralPath();
+		int segments = 16;
+		float[] arcX = new float[segments + 1];
+		float[] arcY = new float[segments + 1];
+		
+		for (int i = 0; i <= segments; i++) {
+			double t = Math.PI * i / segments;
+			arcX[i] = (float) (tileWidth / Math.PI * (t - Math.sin(t)));
+			arcY[i] = (float) (tileHeight / Math.PI * (1 - Math.cos(t)));
+		}
+		
+		for (int h = 0; h < linesV; h++) {
+			for (int v = 0; v < linesH; v++) {
+				float x = (float) (xstart + h * tileWidth);
+				float y = (float) (ystart + v * tileHeight);
+				path.moveTo(x + arcX[0], y + arcY[0]);
+				for (int i = 1; i <= segments; i++)
+					path.lineTo(x + arcX[i], y + arcY[i]);
+			}
+		}
+		return path;
+	}
+	
+	// crosses on a hexagonal lattice whose odd rows are shifted by half a tile
+	GeneralPath drawHexagonal() {
+		GeneralPath path = new GeneralPath();
+		float arm = 5;
+		for (int v = 0; v < linesH; v++) {
+			double rowStart = GridParameters.getHexRowStart(xstart, tileWidth, v);
+			int columns = GridParameters.getHexRowColumns(width, rowStart, tileWidth);
+			float y = (float) (ystart + v * tileHeight);
+			
+			for (int h = 0; h < columns; h++) {
+				float x = (float) (rowStart + h * tileWidth);
+				path.moveTo(x - arm, y); path.lineTo(x + arm, y);
+				path.moveTo(x, y - arm); path.lineTo(x, y + arm);
+			}
+		}
+		return path;
+	}
+	
+	// Lines rotated counterclockwise by angle, spaced by the tile size in
+	// calibrated units. At angle 0 they are same as Horizontal Lines.
+	GeneralPath drawIsotropicLines() {
+		GeneralPath path = new GeneralPath();
+		double theta = Math.toRadians(angle);
+		// normal of the lines in pixel coordinates
+		double nx = Math.sin(theta) * pixelWidth;
+		double ny = Math.cos(theta) * pixelHeight;
+		if (tileHeight <= 0)
+			return path;
+		
+		// range of distances of the image corners along the normal
+		double min = Math.min(Math.min(0, width * nx), 
+				Math.min(height * ny, width * nx + height * ny));
+		double max = Math.max(Math.max(0, width * nx), 
+				Math.max(height * ny, width * nx + height * ny));
+		
+		double[] ends = new double[8];
+		for (int i = 0; min + (ystart + i * tileHeight) * pixelHeight <= max; i++) {
+			double d = min + (ystart + i * tileHeight) * pixelHeight;
+			
+			// intersections of a line x * nx + y * ny = d with the image edges
+			int n = 0;
+			if (Math.abs(ny) > 1e-9) {
+				double yLeft = d / ny;
+				double yRight = (d - width * nx) / ny;
+				if (yLeft >= 0 && yLeft <= height) {
+					ends[n++] = 0; ends[n++] = yLeft;
+				}
+				if (yRight >= 0 && yRight <= height) {
+					ends[n++] = width; ends[n++] = yRight;
+				}
+			}
+			if (Math.abs(nx) > 1e-9) {
+				double xTop = d / nx;
+				double xBottom = (d - height * ny) / nx;
+				if (xTop >= 0 && xTop <= width && n < 8) {
+					ends[n++] = xTop; ends[n++] = 0;
+				}
+				if (xBottom >= 0 && xBottom <= width && n < 8) {
+					ends[n++] = xBottom; ends[n++] = height;
+				}
+			}
+			if (n < 4)
+				continue;
+			
+			// the farthest one from the first intersection
+			int far = 2;
+			for (int j = 4; j < n; j += 2)
+				if (Math.abs(ends[j] - ends[0]) + Math.abs(ends[j + 1] - ends[1]) >
+						Math.abs(ends[far] - ends[0]) + Math.abs(ends[far + 1] - ends[1]))
+					far = j;
+			path.moveTo((float) ends[0], (float) ends[1]);
+			path.lineTo((float) ends[far], (float) ends[far + 1]);
+		}
+		return path;
+	}
+
+	// For grids exceeding the memory limit, fine points are drawn as
+	// intersections of lines and coarse points as in the Combined Point grid.
+	GeneralPath drawLightweight(boolean coarse) {
+		GeneralPath path = drawLines();
+		
+		if (coarse) {
+			for (int h = 0; h < linesV; h += coarseGridX) {
+				for (int v = 0; v < linesH; v += coarseGridY) {
+					float centerX = 
+							(float) (xstart + xstartCoarse * tileWidth + h * tileWidth);
+					float centerY = 
+							(float) (ystart + ystartCoarse * tileHeight + v * tileHeight);
+					drawCoarsePoint(path, centerX, centerY);
+				}
+			}
+		}
+		return path;
+	}
+
 	// end of methods for drawing grids
 
 	void showDialog() {
@@ -284,7 +422,13 @@ public class CombinedGridsPlugin implements PlugIn, DialogListener {
 		if (areaPerPoint == 0.0) // default to 9x9 grid
 			areaPerPoint = (width * cal.pixelWidth * height * cal.pixelHeight) / 81.0;
 		
-		totalSlices = imp.getStackSize();
+		hyperstack = imp.isHyperStack();
+		if (hyperstack) {
+			nSlices = imp.getNSlices();
+			int nFrames = imp.getNFrames();
+			totalSlices = nSlices * nFrames;
+		} else
+			totalSlices = imp.getStackSize();
 		
 		// get values in a dialog box
 		GenericDialog gd = new GenericDialog("Grid...");
@@ -303,6 +447,15 @@ public class CombinedGridsPlugin implements PlugIn, DialogListener {
 					applyChoices, 3, 1, applyTo);
 		
 		gd.addCheckbox("Show a Grid Switch if none exists", showGridSwitch);
+		gd.addNumericField("Memory Limit:", memoryLimit, 0, 6, "MB");
+		
+		// estimate of the grid(s), updated by dialogItemChanged
+		setCoarseGrids();
+		calculateTile();
+		String estimate = checkCost(width, height, getNumberOfGrids());
+		err = "";
+		gd.addMessage("Estimate: " + estimate);
+		costLabel = (Label) gd.getMessage();
 		// to switch enable/disable for parameter input boxes
 		components = gd.getComponents();
 		enableFields();
@@ -311,9 +464,11 @@ public class CombinedGridsPlugin implements PlugIn, DialogListener {
 		gd.showDialog();
 
 		if (gd.wasCanceled())
-			showGrid(null);
+			GridSnapshots.restore(imp);
 		if (gd.wasOKed()) {
 			if ("".equals(err)) {
+				imp.setProperty(GridParameters.PROPERTY, gridRecordArray);
+				GridSnapshots.push(imp, gridRecordArray, getSettingsLabel());
 				showHistory(gridParameterArray);
 				if (showGridSwitch && !gridSwitchExist()){
 					Grid_Switch gs = new Grid_Switch();
@@ -321,7 +476,7 @@ public class CombinedGridsPlugin implements PlugIn, DialogListener {
 				}
 			} else {
 				IJ.error("Grid", err);
-				showGrid(null);
+				GridSnapshots.restore(imp);
 			}
 		}
 	}
@@ -343,18 +498,25 @@ public class CombinedGridsPlugin implements PlugIn, DialogListener {
 			applyTo = gd.getNextRadioButton();
 		
 		showGridSwitch = gd.getNextBoolean();
+		memoryLimit = gd.getNextNumber();
 		
 		err = "";
 		IJ.showStatus(err);
 		
 		gridParameterArray = new String[totalSlices];
 		gridRoiArray = new Roi[totalSlices];
+		gridRecordArray = new GridParameters[totalSlices];
 				
 		minAreaCheck();
+		memoryLimitCheck();
 		enableFields();
 		setCoarseGrids();
 		calculateTile();
 		
+		if ("".equals(err))
+			setCostText(gd, "Estimate: " + checkCost(width, height, getNumberOfGrids()));
+		else
+			setCostText(gd, "");
 
 		if(applyChoices[DIFFERENTforEACH].equals(applyTo)){
 			for (int i = 1; i <= totalSlices; i++){
@@ -387,7 +549,7 @@ public class CombinedGridsPlugin implements PlugIn, DialogListener {
 			}
 			
 			if(applyChoices[CURRENT].equals(applyTo)){
-				int currentSlice = imp.getCurrentSlice();
+				int currentSlice = getCurrentGridIndex();
 				addGridOnArray(gridRoi, currentSlice);
 				saveGridParameters(currentSlice);
 			}
@@ -407,16 +569,87 @@ public class CombinedGridsPlugin implements PlugIn, DialogListener {
 			gridRoiArray[0] = sliceGridRoi;
 		}else {
 			sliceGridRoi.setName("grid" + sliceIndex);
-			sliceGridRoi.setPosition(sliceIndex);
+			if (hyperstack)
+				sliceGridRoi.setPosition(0, getZ(sliceIndex), getT(sliceIndex));
+				// channel 0 shows the grid on all channels
+			else
+				sliceGridRoi.setPosition(sliceIndex);
 			gridRoiArray[sliceIndex - 1] = sliceGridRoi;
 		}
 	}
 	
 	
+	// index of a grid among (Z, T) positions of a hyperstack,
+	// or the slice number of an ordinary stack
+	int getCurrentGridIndex(){
+		return GridParameters.getGridIndex(imp);
+	}
+	
+	int getZ(int gridIndex){
+		return (gridIndex - 1) % nSlices + 1;
+	}
+	
+	int getT(int gridIndex){
+		return (gridIndex - 1) / nSlices + 1;
+	}
+	
+	
+	int getNumberOfGrids(){
+		if (applyChoices[DIFFERENTforEACH].equals(applyTo))
+			return totalSlices;
+		return 1;
+	}
+	
+	
+	// Predicts the size of grids before they are drawn. Points are drawn as
+	// intersections of lines if the grids exceed the memory limit, and grids
+	// which exceed the limit even so are not drawn.
+	String checkCost(int width, int height, int nGrids){
+		lightweight = false;
+		double limit = GridCost.getMemoryLimit(memoryLimit);
+		GridCost cost = new GridCost(type, width, height, tileWidth, tileHeight,
+				coarseGridX, coarseGridY, nGrids, false);
+		
+		if (cost.getMegabytes() > limit && GridCost.hasLightweight(type)) {
+			lightweight = true;
+			cost = new GridCost(type, width, height, tileWidth, tileHeight,
+					coarseGridX, coarseGridY, nGrids, true);
+		}
+		
+		if (cost.getMegabytes() > limit)
+			err += "Grid exceeds the memory limit of "
+					+ IJ.d2s(limit, 0) + " MB. \n";
+		
+		if (lightweight)
+			return cost + " (points as intersections of lines)";
+		return cost.toString();
+	}
+	
+	
+	// A Label does not resize itself, so the dialog is packed again when the
+	// estimate gets longer than the label.
+	void setCostText(GenericDialog gd, String text){
+		costLabel.setText(text);
+		if (costLabel.getPreferredSize().width > costLabel.getSize().width)
+			gd.pack();
+	}
+	
+	
+	// if memoryLimit is not a positive number, show an error
+	void memoryLimitCheck(){
+		if (Double.isNaN(memoryLimit) || Double.isInfinite(memoryLimit)
+				|| memoryLimit <= 0) {
+			err += "\"Memory Limit\" must be a positive number. \n";
+			memoryLimit = DEFAULT_MEMORY_LIMIT;
+		}
+	}
+	
+	
 	// if areaPerPoint is not too small, show an error
 	void minAreaCheck(){
-		double minArea = (width * height) / 50000.0;
-		if (type.equals(types[CROSSES]) && minArea < 144.0)
+		double minArea = ((double) width * height) / 50000.0;
+		if ((type.equals(types[CROSSES]) || type.equals(types[HEXAGONAL])) 
+				&& minArea < 144.0)
 			minArea = 144.0;
 			// to avoid overlap of grid points.
 			// ((5 + 1) * 2) ^2 = 12^2 = 144
@@ -450,7 +683,7 @@ public class CombinedGridsPlugin implements PlugIn, DialogListener {
 		if (radiochoice.equals(radiobuttons[MANUAL])) {
 			fieldEnabler(ystartField, true);
 
-			if (type.equals(types[HLINES]))
+			if (type.equals(types[HLINES]) || type.equals(types[ISOTROPIC]))
 				fieldEnabler(xstartField, false);
 				//disable xstartField because
 				//Horizontal lines needs just ystart and does not need xstart
@@ -494,6 +727,14 @@ public class CombinedGridsPlugin implements PlugIn, DialogListener {
 	
 	// calculation for tileWidth and tileLength
 	void calculateTile() {
+		if (type.equals(types[HEXAGONAL])) {
+			// area per point of a hexagonal lattice is spacing^2 * sqrt(3) / 2
+			double spacing = Math.sqrt(2 * areaPerPoint / Math.sqrt(3));
+			tileWidth  = spacing / pixelWidth;
+			tileHeight = spacing * Math.sqrt(3) / 2 / pixelHeight;
+			return;
+		}
+		
 		double tileSize = Math.sqrt(areaPerPoint);
 		tileWidth  = tileSize / pixelWidth;
 		tileHeight = tileSize / pixelHeight;
@@ -508,14 +749,17 @@ public class CombinedGridsPlugin implements PlugIn, DialogListener {
 					// 0 <= random.nextDouble() < 1
 			xstartCoarse = random.nextInt(coarseGridX);
 			ystartCoarse = random.nextInt(coarseGridY);
+			angle = type.equals(types[ISOTROPIC]) ? random.nextDouble() * 180 : 0;
 		} else if (radiochoice.equals(radiobuttons[FIXED])) {
+			angle = 0;
 			xstart = (int) (tileWidth / 2.0 + 0.5);
 			ystart = (int) (tileHeight / 2.0 + 0.5);
 			xstartCoarse = 0;
 			ystartCoarse = 0;
 		} else if (radiochoice.equals(radiobuttons[MANUAL])) {
 
-			if (type.equals(types[HLINES])) {
+			angle = 0;
+			if (type.equals(types[HLINES]) || type.equals(types[ISOTROPIC])) {
 				xstart = 0; // just to prevent an error
 			}
 
@@ -545,9 +789,23 @@ public class CombinedGridsPlugin implements PlugIn, DialogListener {
 	
 	
 	ShapeRoi getGridRoi() {
+		ShapeRoi roi = new ShapeRoi(getGridPath());
+		roi.setStrokeColor(getColor());
+		return roi;
+	}
+	
+	
+	GeneralPath getGridPath() {
+		return getGridPath(type, lightweight);
+	}
+	
+	
+	GeneralPath getGridPath(String type, boolean lightweight) {
 		GeneralPath path; 
 		
-		if (type.equals(types[LINES]))
+		if (lightweight)
+			path = drawLightweight(GridParameters.hasCoarsePoints(type));
+		else if (type.equals(types[LINES]))
 			 path = drawLines();
 		else if (type.equals(types[HLINES]))
 			path = drawHorizontalLines();
@@ -561,17 +819,128 @@ public class CombinedGridsPlugin implements PlugIn, DialogListener {
 		else if (type.equals(types[DOUBLE_LATTICE]))
 			path =  drawDoubleLattice();
 		
+		else if (type.equals(types[CYCLOIDS]))
+			path =  drawCycloids();
+		else if (type.equals(types[HEXAGONAL]))
+			path =  drawHexagonal();
+		else if (type.equals(types[ISOTROPIC]))
+			path =  drawIsotropicLines();
+		
 		else
 			path =  null;
 		
-		ShapeRoi roi = new ShapeRoi(path);
-		roi.setStrokeColor(getColor());
-		return roi;
+		return path;
+	}
+	
+	
+	
+	// Settings for grids drawn without the dialog, i.e. grids within sampling
+	// fields of FractionatorSampling. Values are remembered for the dialog.
+	void setGridSettings(String type, double areaPerPoint, String gridRatio,
+			String color, String location, double pixelWidth, double pixelHeight,
+			String units){
+		CombinedGridsPlugin.type = type;
+		CombinedGridsPlugin.areaPerPoint = areaPerPoint;
+		CombinedGridsPlugin.gridRatio = gridRatio;
+		CombinedGridsPlugin.color = color;
+		radiochoice = location;
+		this.pixelWidth = pixelWidth;
+		this.pixelHeight = pixelHeight;
+		this.units = units;
+		err = "";
+		setCoarseGrids();
+		calculateTile();
 	}
 	
 	
+	void setImage(ImagePlus imp){
+		this.imp = imp;
+		hyperstack = imp.isHyperStack();
+		nSlices = imp.getNSlices();
+		Calibration cal = imp.getCalibration();
+		if (cal.scaled()) {
+			pixelWidth = cal.pixelWidth;
+			pixelHeight = cal.pixelHeight;
+		}
+	}
+	
+	
+	// grids drawn again from their records, e.g. to undo grids
+	Roi[] getGridRois(GridParameters[] records){
+		Roi[] rois = new Roi[records.length * 2];
+		
+		for (int i = 0; i < records.length; i++) {
+			GridParameters p = records[i];
+			if (p == null)
+				continue;
+			
+			width = p.width;
+			height = p.height;
+			tileWidth = p.tileWidth;
+			tileHeight = p.tileHeight;
+			xstart = p.xstart;
+			ystart = p.ystart;
+			xstartCoarse = p.xstartCoarse;
+			ystartCoarse = p.ystartCoarse;
+			coarseGridX = p.coarseGridX;
+			coarseGridY = p.coarseGridY;
+			linesV = p.linesV;
+			linesH = p.linesH;
+			angle = p.angle;
+			
+			GeneralPath path = getGridPath(p.type, p.lightweight);
+			path.transform(AffineTransform.getTranslateInstance(p.offsetX, p.offsetY));
+			ShapeRoi gridRoi = new ShapeRoi(path);
+			gridRoi.setStrokeColor(getColor(p.color));
+			
+			if (p.fieldNumber > 0) {
+				Roi frame = new Roi(p.offsetX, p.offsetY, p.width, p.height);
+				frame.setName("grid-frame" + p.fieldNumber);
+				frame.setStrokeColor(getColor(p.color));
+				rois[i * 2] = frame;
+				gridRoi.setName("grid-field" + p.fieldNumber);
+			} else if (p.position == 0)
+				gridRoi.setName("grid");
+			else {
+				gridRoi.setName("grid" + p.position);
+				if (hyperstack)
+					gridRoi.setPosition(0, getZ(p.position), getT(p.position));
+				else
+					gridRoi.setPosition(p.position);
+			}
+			rois[i * 2 + 1] = gridRoi;
+		}
+		return rois;
+	}
+	
+	
+	// a grid placed within a field whose upper left corner is at (0, 0)
+	GeneralPath getFieldGridPath(int fieldWidth, int fieldHeight){
+		width = fieldWidth;
+		height = fieldHeight;
+		minAreaCheck();
+		if (!"".equals(err))
+			return null;
+		
+		calculateFirstGrid();
+		return getGridPath();
+	}
+	
+	// a short description of the current settings for snapshots of grids
+	String getSettingsLabel(){
+		return type + ", " + areaPerPoint + " " + units + "^2, " + radiochoice;
+	}
+	
+	String getError(){
+		return err;
+	}
+	
 	
 	Color getColor() {
+		return getColor(color);
+	}
+	
+	static Color getColor(String color) {
 		Color c = Color.black;
 		if (color.equals(colors[0]))
 			c = Color.red;
@@ -598,43 +967,86 @@ public class CombinedGridsPlugin implements PlugIn, DialogListener {
 	
 	// output grid parameters
 	void saveGridParameters(int sliceNumber){
+		String sliceStr;
+		int index;
+		
+		if(sliceNumber == 0){
+			sliceStr = "All";
+			index = 0; // to input parameters into gridParameterArray
+		} else{
+			if (hyperstack)
+				sliceStr = "z" + getZ(sliceNumber) + "t" + getT(sliceNumber);
+			else
+				sliceStr = "" + sliceNumber;
+			index = sliceNumber - 1;
+		}
+		
+		gridParameterArray[index] = getGridParameters(imp.getTitle(), sliceStr);
+		gridRecordArray[index] = getGridRecord(sliceNumber);
+	}
+	
+	
+	// a compact record of the current grid from which grid points are
+	// calculated, e.g. by the macro extensions
+	GridParameters getGridRecord(int position){
+		GridParameters p = new GridParameters();
+		p.type = type;
+		p.color = color;
+		p.position = position;
+		p.width = width;
+		p.height = height;
+		p.tileWidth = tileWidth;
+		p.tileHeight = tileHeight;
+		p.xstart = xstart;
+		p.ystart = ystart;
+		p.xstartCoarse = xstartCoarse;
+		p.ystartCoarse = ystartCoarse;
+		p.coarseGridX = coarseGridX;
+		p.coarseGridY = coarseGridY;
+		p.linesV = linesV;
+		p.linesH = linesH;
+		p.angle = angle;
+		p.lightweight = lightweight;
+		return p;
+	}
+	
+	
+	// a line of the grid history for the current grid
+	String getGridParameters(String title, String sliceStr){
 		Integer xStartOutput = new Integer(xstart);
 		Integer xStartCoarseOutput = new Integer(xstartCoarse);
 		Integer yStartCoarseOutput = new Integer(ystartCoarse);
+		Double angleOutput = null;
+		String ratioOutput = gridRatio;
 		String singleQuart = "'";
 
 		if (type.equals(types[HLINES]))
 			xStartOutput = null;
+		
+		if (type.equals(types[ISOTROPIC])) {
+			xStartOutput = null;
+			angleOutput = Double.valueOf(angle);
+		}
 
 		if (!(type.equals(types[COMBINED]) || type.equals(types[DOUBLE_LATTICE]))) {
 			xStartCoarseOutput = null;
 			yStartCoarseOutput = null;
 			singleQuart = "";
-			gridRatio = null;
+			ratioOutput = null;
 		}
-
 		
+		// points drawn as intersections of lines over the memory limit
+		String typeOutput = lightweight ? type + " (lines)" : type;
 		
-		String sliceStr;
-		int index;
-		
-		if(sliceNumber == 0){
-			sliceStr = "All";
-			index = 0; // to input parameters into gridParameterArray
-		} else{
-			sliceStr = "" + sliceNumber;
-			index = sliceNumber - 1;
-		}
-		
-		String gridParameters = imp.getTitle() + "\t" + 
-				sliceStr + "\t" + type + "\t" + areaPerPoint + "\t" + units + "^2" +
-				"\t" + singleQuart + gridRatio + "\t" + color + "\t" + radiochoice
+		String gridParameters = title + "\t" + 
+				sliceStr + "\t" + typeOutput + "\t" + areaPerPoint + "\t" + units + "^2" +
+				"\t" + singleQuart + ratioOutput + "\t" + color + "\t" + radiochoice
 				+ "\t" + xStartOutput + "\t" + ystart + "\t"
-				+ xStartCoarseOutput + "\t" + yStartCoarseOutput;
+				+ xStartCoarseOutput + "\t" + yStartCoarseOutput + "\t" + angleOutput;
 		// singleQuart before gridRatio is to prevent conversion to date in
 		// Excel.
 		
-		gridParameterArray[index] = gridParameters;
+		return gridParameters;
 	}
 	
 	
@@ -649,7 +1061,7 @@ public class CombinedGridsPlugin implements PlugIn, DialogListener {
 					historyWindowTitle,
 					"Date \t Image \t Slice \t Grid Type \t Area per Point \t Unit "
 					+ "\t Ratio \t Color \t Location Setting "
-					+ "\t xstart \t ystart \t xstartCoarse \t ystartCoarse",
+					+ "\t xstart \t ystart \t xstartCoarse \t ystartCoarse \t Angle",
 					"", 1028, 250);
 			
 			//If a file whose name is String textfileName exists in the plugin folder, 
@@ -0,0 +1,498 @@
+package ca.phcri;
+
+import ij.ImagePlus;
+import ij.io.FileInfo;
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.awt.Rectangle;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+
+// Reads a rectangular field of an uncompressed TIFF image directly from its
+// file so that a field of a whole-slide image can be exported without
+// loading the whole image into memory. The header is parsed here, as the
+// TiffDecoder of ImageJ 1.47 reads neither BigTIFF nor tiled files. Only
+// the first image in a file is read.
+class FieldReader {
+	// TIFF tags
+	private final static int IMAGE_WIDTH = 256, IMAGE_LENGTH = 257,
+			BITS_PER_SAMPLE = 258, COMPRESSION = 259, PHOTOMETRIC = 262,
+			IMAGE_DESCRIPTION = 270, STRIP_OFFSETS = 273, SAMPLES_PER_PIXEL = 277,
+			ROWS_PER_STRIP = 278, X_RESOLUTION = 282, Y_RESOLUTION = 283,
+			PLANAR_CONFIGURATION = 284, RESOLUTION_UNIT = 296, TILE_WIDTH = 322,
+			TILE_LENGTH = 323, TILE_OFFSETS = 324, SAMPLE_FORMAT = 339;
+	// bytes of TIFF field types, indexed by the type
+	private final static int[] TYPE_SIZES =
+		{ 0, 1, 1, 2, 4, 8, 1, 1, 2, 4, 8, 4, 8, 4, 0, 0, 8, 8, 8 };
+
+	private ImagePlus imp;
+	private File file;
+	private String unsupported; // why fields cannot be read from the file
+
+	private ByteOrder byteOrder = ByteOrder.BIG_ENDIAN;
+	private boolean bigTiff;
+	private int width, height;
+	private int fileType, bytesPerPixel;
+	private boolean whiteIsZero;
+	// Pixels are stored in chunks, which are tiles, or strips as wide as the
+	// image. Rows of a chunk are chunkWidth pixels long.
+	private int chunkWidth, chunkHeight, chunksAcross;
+	private long[] chunkOffsets;
+	private double pixelWidth = 1.0, pixelHeight = 1.0;
+	private String unit = "pixels";
+
+
+	// for a file which is not opened
+	FieldReader(String directory, String fileName){
+		file = new File(directory, fileName);
+		parse();
+	}
+
+	// for an open image, which is read from its file if not modified
+	FieldReader(FileInfo fi, ImagePlus imp){
+		this.imp = imp;
+		if (fi == null || fi.fileFormat != FileInfo.TIFF || fi.directory == null
+				|| fi.directory.length() == 0 || fi.fileName == null)
+			unsupported = "The image is not from a TIFF file.";
+		else {
+			file = new File(fi.directory, fi.fileName);
+			parse();
+		}
+	}
+
+
+	private void parse(){
+		if (!file.isFile()) {
+			unsupported = file.getName() + " does not exist.";
+			return;
+		}
+		try {
+			RandomAccessFile raf = new RandomAccessFile(file, "r");
+			try {
+				readHeader(raf);
+			} finally {
+				raf.close();
+			}
+		} catch (IOException e) {
+			unsupported = "Cannot read " + file.getName() + ": " + e.getMessage();
+		} catch (RuntimeException e) {
+			// e.g. offsets out of range in a broken header
+			unsupported = file.getName() + " is not a valid TIFF file.";
+		}
+	}
+
+
+	private void readHeader(RandomAccessFile raf) throws IOException {
+		byte[] magic = new byte[2];
+		raf.readFully(magic);
+		if (magic[0] == 'I' && magic[1] == 'I')
+			byteOrder = ByteOrder.LITTLE_ENDIAN;
+		else if (!(magic[0] == 'M' && magic[1] == 'M')) {
+			unsupported = file.getName() + " is not a TIFF file.";
+			return;
+		}
+
+		ByteBuffer header = read(raf, 2, 6);
+		int version = header.getShort(0) & 0xffff;
+		long ifdOffset;
+		if (version == 42)
+			ifdOffset = header.getInt(2) & 0xffffffffL;
+		else if (version == 43) {
+			bigTiff = true;
+			ifdOffset = read(raf, 8, 8).getLong(0);
+		} else {
+			unsupported = file.getName() + " is not a TIFF file.";
+			return;
+		}
+
+		long nEntries = bigTiff ?
+				read(raf, ifdOffset, 8).getLong(0) : read(raf, ifdOffset, 2).getShort(0) & 0xffff;
+		if (nEntries <= 0 || nEntries > 4096)
+			throw new IOException("invalid directory");
+		int entrySize = bigTiff ? 20 : 12;
+		ByteBuffer entries =
+				read(raf, ifdOffset + (bigTiff ? 8 : 2), (int) nEntries * entrySize);
+
+		int bitsPerSample = 1, compression = 1, photometric = 1;
+		int samplesPerPixel = 1, rowsPerStrip = 0, planarConfiguration = 1;
+		int resolutionUnit = 2, tileWidth = 0, tileLength = 0, sampleFormat = 1;
+		double xResolution = 0.0, yResolution = 0.0;
+		String description = null;
+		long[] stripOffsets = null, tileOffsets = null;
+
+		for (int i = 0; i < nEntries; i++) {
+			int entry = i * entrySize;
+			int tag = entries.getShort(entry) & 0xffff;
+			int type = entries.getShort(entry + 2) & 0xffff;
+			long count = bigTiff ?
+					entries.getLong(entry + 4) : entries.getInt(entry + 4) & 0xffffffffL;
+			if (type >= TYPE_SIZES.length || TYPE_SIZES[type] == 0 || count == 0)
+				continue;
+
+			switch (tag) {
+			case IMAGE_WIDTH:
+				width = (int) getValues(raf, entries, entry, type, count)[0];
+				break;
+			case IMAGE_LENGTH:
+				height = (int) getValues(raf, entries, entry, type, count)[0];
+				break;
+			case BITS_PER_SAMPLE:
+				bitsPerSample = (int) getValues(raf, entries, entry, type, count)[0];
+				break;
+			case COMPRESSION:
+				compression = (int) getValues(raf, entries, entry, type, count)[0];
+				break;
+			case PHOTOMETRIC:
+				photometric = (int) getValues(raf, entries, entry, type, count)[0];
+				break;
+			case IMAGE_DESCRIPTION:
+				byte[] text = new byte[(int) count];
+				getValueBuffer(raf, entries, entry, type, count).get(text);
+				description = new String(text, "ISO-8859-1");
+				break;
+			case STRIP_OFFSETS:
+				stripOffsets = getValues(raf, entries, entry, type, count);
+				break;
+			case SAMPLES_PER_PIXEL:
+				samplesPerPixel = (int) getValues(raf, entries, entry, type, count)[0];
+				break;
+			case ROWS_PER_STRIP:
+				rowsPerStrip = (int) Math.min(
+						getValues(raf, entries, entry, type, count)[0], Integer.MAX_VALUE);
+				break;
+			case X_RESOLUTION:
+				xResolution = getRational(getValueBuffer(raf, entries, entry, type, count));
+				break;
+			case Y_RESOLUTION:
+				yResolution = getRational(getValueBuffer(raf, entries, entry, type, count));
+				break;
+			case PLANAR_CONFIGURATION:
+				planarConfiguration = (int) getValues(raf, entries, entry, type, count)[0];
+				break;
+			case RESOLUTION_UNIT:
+				resolutionUnit = (int) getValues(raf, entries, entry, type, count)[0];
+				break;
+			case TILE_WIDTH:
+				tileWidth = (int) getValues(raf, entries, entry, type, count)[0];
+				break;
+			case TILE_LENGTH:
+				tileLength = (int) getValues(raf, entries, entry, type, count)[0];
+				break;
+			case TILE_OFFSETS:
+				tileOffsets = getValues(raf, entries, entry, type, count);
+				break;
+			case SAMPLE_FORMAT:
+				sampleFormat = (int) getValues(raf, entries, entry, type, count)[0];
+				break;
+			}
+		}
+
+		if (width <= 0 || height <= 0) {
+			unsupported = file.getName() + " has no image size.";
+			return;
+		}
+		if (compression != 1) {
+			unsupported = "Compressed TIFF files are not supported.";
+			return;
+		}
+
+		if (samplesPerPixel == 1 && bitsPerSample == 8)
+			fileType = FileInfo.GRAY8;
+		else if (samplesPerPixel == 1 && bitsPerSample == 16)
+			fileType = sampleFormat == 2 ? FileInfo.GRAY16_SIGNED : FileInfo.GRAY16_UNSIGNED;
+		else if (samplesPerPixel == 1 && bitsPerSample == 32 && sampleFormat == 3)
+			fileType = FileInfo.GRAY32_FLOAT;
+		else if (samplesPerPixel >= 3 && bitsPerSample == 8 && photometric == 2
+				&& planarConfiguration == 1)
+			fileType = FileInfo.RGB; // an alpha channel, if any, is skipped
+		else {
+			unsupported = "Only 8-bit, 16-bit, 32-bit float and RGB TIFF files\n"
+					+ "are supported.";
+			return;
+		}
+		bytesPerPixel = samplesPerPixel * bitsPerSample / 8;
+		whiteIsZero = photometric == 0;
+
+		if (tileOffsets != null && tileWidth > 0 && tileLength > 0) {
+			chunkWidth = tileWidth;
+			chunkHeight = tileLength;
+			chunkOffsets = tileOffsets;
+		} else if (stripOffsets != null) {
+			chunkWidth = width;
+			chunkHeight = rowsPerStrip <= 0 || rowsPerStrip > height ? height : rowsPerStrip;
+			chunkOffsets = stripOffsets;
+		} else {
+			unsupported = file.getName() + " has no strip or tile offsets.";
+			return;
+		}
+		chunksAcross = (width + chunkWidth - 1) / chunkWidth;
+		long chunksDown = (height + chunkHeight - 1) / chunkHeight;
+		if (chunkOffsets.length < chunksAcross * chunksDown) {
+			unsupported = file.getName() + " has too few strip or tile offsets.";
+			return;
+		}
+
+		setCalibration(description, xResolution, yResolution, resolutionUnit);
+	}
+
+
+	// Units are taken from the description written by ImageJ, centimeters of
+	// the resolution unit, or microns per pixel (MPP) of Aperio slides.
+	private void setCalibration(String description, double xResolution,
+			double yResolution, int resolutionUnit){
+		String descriptionUnit = getDescriptionValue(description, "\nunit=", "\n");
+		if (xResolution > 0.0 && yResolution > 0.0) {
+			if (description != null && description.startsWith("ImageJ")
+					&& descriptionUnit != null) {
+				unit = descriptionUnit;
+				pixelWidth = 1.0 / xResolution;
+				pixelHeight = 1.0 / yResolution;
+				return;
+			} else if (resolutionUnit == 3) {
+				unit = "micron";
+				pixelWidth = 10000.0 / xResolution;
+				pixelHeight = 10000.0 / yResolution;
+				return;
+			}
+		}
+
+		String mpp = getDescriptionValue(description, "MPP = ", "|");
+		if (mpp != null) {
+			try {
+				pixelWidth = pixelHeight = Double.parseDouble(mpp.trim());
+				unit = "micron";
+			} catch (NumberFormatException e) {}
+		}
+	}
+
+	private static String getDescriptionValue(String description, String key,
+			String end){
+		if (description == null)
+			return null;
+		int start = description.indexOf(key);
+		if (start < 0)
+			return null;
+		start += key.length();
+		int stop = description.indexOf(end, start);
+		if (stop < 0)
+			stop = description.length();
+		return description.substring(start, stop).replace("\0", "").trim();
+	}
+
+
+	private ByteBuffer read(RandomAccessFile raf, long position, int length)
+			throws IOException {
+		byte[] bytes = new byte[length];
+		raf.seek(position);
+		raf.readFully(bytes);
+		return ByteBuffer.wrap(bytes).order(byteOrder);
+	}
+
+	// values of an entry are in the entry itself if they fit into 4 bytes, or
+	// 8 bytes for BigTIFF, and at an offset otherwise
+	private ByteBuffer getValueBuffer(RandomAccessFile raf, ByteBuffer entries,
+			int entry, int type, long count) throws IOException {
+		long size = TYPE_SIZES[type] * count;
+		if (size > Integer.MAX_VALUE)
+			throw new IOException("too many values");
+		int valuePosition = entry + (bigTiff ? 12 : 8);
+		if (size <= (bigTiff ? 8 : 4)) {
+			ByteBuffer values = entries.duplicate();
+			values.position(valuePosition);
+			return values.slice().order(byteOrder);
+		}
+		long offset = bigTiff ? entries.getLong(valuePosition)
+				: entries.getInt(valuePosition) & 0xffffffffL;
+		return read(raf, offset, (int) size);
+	}
+
+	private long[] getValues(RandomAccessFile raf, ByteBuffer entries, int entry,
+			int type, long count) throws IOException {
+		ByteBuffer buffer = getValueBuffer(raf, entries, entry, type, count);
+		long[] values = new long[(int) count];
+		for (int i = 0; i < values.length; i++) {
+			switch (type) {
+			case 3: // SHORT
+				values[i] = buffer.getShort(i * 2) & 0xffff;
+				break;
+			case 4: // LONG
+			case 13: // IFD
+				values[i] = buffer.getInt(i * 4) & 0xffffffffL;
+				break;
+			case 16: // LONG8
+			case 18: // IFD8
+				values[i] = buffer.getLong(i * 8);
+				break;
+			default:
+				values[i] = buffer.get(i) & 0xff;
+			}
+		}
+		return values;
+	}
+
+	private double getRational(ByteBuffer buffer){
+		double denominator = buffer.getInt(4) & 0xffffffffL;
+		return denominator == 0.0 ? 0.0 : (buffer.getInt(0) & 0xffffffffL) / denominator;
+	}
+
+
+	// null if fields can be read from the file
+	String getUnsupportedFormat(){
+		return unsupported;
+	}
+
+	int getWidth(){
+		return width;
+	}
+
+	int getHeight(){
+		return height;
+	}
+
+	double getPixelWidth(){
+		return pixelWidth;
+	}
+
+	double getPixelHeight(){
+		return pixelHeight;
+	}
+
+	String getUnit(){
+		return unit;
+	}
+
+	int getBitDepth(){
+		switch (fileType) {
+		case FileInfo.GRAY8:
+			return 8;
+		case FileInfo.GRAY32_FLOAT:
+			return 32;
+		case FileInfo.RGB:
+			return 24;
+		default:
+			return 16;
+		}
+	}
+
+
+	// true if fields can be read from the file of the image
+	boolean readsFromDisk(){
+		if (unsupported != null)
+			return false;
+		if (imp != null && (imp.changes || imp.getStackSize() > 1
+				|| imp.getWidth() != width || imp.getHeight() != height
+				|| imp.getBitDepth() != getBitDepth()))
+			return false;
+			// an image modified in memory is cropped instead
+		return true;
+	}
+
+
+	// returns null if the field can be read neither from the file nor from
+	// the image in memory
+	ImageProcessor read(Rectangle field) throws IOException {
+		if (readsFromDisk())
+			return readFromDisk(field);
+
+		if (imp == null)
+			return null;
+
+		ImageProcessor ip = imp.getProcessor();
+		ip.setRoi(field);
+		ImageProcessor fieldIp = ip.crop();
+		ip.setRoi((Rectangle) null);
+		return fieldIp;
+	}
+
+
+	// Each row of the field is read in runs, one run for each chunk it
+	// crosses.
+	ImageProcessor readFromDisk(Rectangle field) throws IOException {
+		byte[] run = new byte[Math.min(field.width, chunkWidth) * bytesPerPixel];
+		int nPixels = field.width * field.height;
+		boolean intelByteOrder = byteOrder == ByteOrder.LITTLE_ENDIAN;
+
+		byte[] bytePixels = null;
+		short[] shortPixels = null;
+		float[] floatPixels = null;
+		int[] rgbPixels = null;
+
+		if (fileType == FileInfo.GRAY8)
+			bytePixels = new byte[nPixels];
+		else if (fileType == FileInfo.GRAY16_SIGNED
+				|| fileType == FileInfo.GRAY16_UNSIGNED)
+			shortPixels = new short[nPixels];
+		else if (fileType == FileInfo.GRAY32_FLOAT)
+			floatPixels = new float[nPixels];
+		else
+			rgbPixels = new int[nPixels];
+
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			for (int y = 0; y < field.height; y++) {
+				int row = field.y + y;
+				int chunkRow = row / chunkHeight;
+				long rowInChunk = row % chunkHeight;
+				int x = field.x;
+				int end = field.x + field.width;
+
+				while (x < end) {
+					int chunkColumn = x / chunkWidth;
+					int runEnd = Math.min(end, (chunkColumn + 1) * chunkWidth);
+					long position = chunkOffsets[chunkRow * chunksAcross + chunkColumn]
+							+ (rowInChunk * chunkWidth + x % chunkWidth) * bytesPerPixel;
+					raf.seek(position);
+					raf.readFully(run, 0, (runEnd - x) * bytesPerPixel);
+
+					int base = y * field.width + x - field.x;
+					for (int j = 0; j < runEnd - x; j++) {
+						int i = j * bytesPerPixel;
+
+						if (bytePixels != null)
+							bytePixels[base + j] = whiteIsZero ? (byte) ~run[i] : run[i];
+						else if (shortPixels != null) {
+							int value = intelByteOrder ?
+									((run[i + 1] & 0xff) << 8) | (run[i] & 0xff) :
+									((run[i] & 0xff) << 8) | (run[i + 1] & 0xff);
+							if (fileType == FileInfo.GRAY16_SIGNED)
+								value = (short) value + 32768;
+								// same conversion as ImageJ for signed 16-bit images
+							if (whiteIsZero)
+								value = 65535 - value;
+							shortPixels[base + j] = (short) value;
+						} else if (floatPixels != null) {
+							int bits = intelByteOrder ?
+									((run[i + 3] & 0xff) << 24) | ((run[i + 2] & 0xff) << 16)
+									| ((run[i + 1] & 0xff) << 8) | (run[i] & 0xff) :
+									((run[i] & 0xff) << 24) | ((run[i + 1] & 0xff) << 16)
+									| ((run[i + 2] & 0xff) << 8) | (run[i + 3] & 0xff);
+							floatPixels[base + j] = Float.intBitsToFloat(bits);
+						} else
+							rgbPixels[base + j] = 0xff000000 | ((run[i] & 0xff) << 16)
+									| ((run[i + 1] & 0xff) << 8) | (run[i + 2] & 0xff);
+					}
+					x = runEnd;
+				}
+			}
+		} finally {
+			raf.close();
+		}
+
+		if (bytePixels != null)
+			return new ByteProcessor(field.width, field.height, bytePixels, null);
+		else if (shortPixels != null)
+			return new ShortProcessor(field.width, field.height, shortPixels, null);
+		else if (floatPixels != null)
+			return new FloatProcessor(field.width, field.height, floatPixels, null);
+		else
+			return new ColorProcessor(field.width, field.height, rgbPixels);
+	}
+}
@@ -0,0 +1,362 @@
+package ca.phcri;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.WindowManager;
+import ij.gui.DialogListener;
+import ij.gui.GenericDialog;
+import ij.gui.Overlay;
+import ij.gui.Roi;
+import ij.gui.ShapeRoi;
+import ij.io.DirectoryChooser;
+import ij.io.FileSaver;
+import ij.io.OpenDialog;
+import ij.measure.Calibration;
+import ij.plugin.PlugIn;
+import ij.process.ImageProcessor;
+
+import java.awt.AWTEvent;
+import java.awt.Rectangle;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.GeneralPath;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Random;
+
+
+// Systematic uniform random sampling of counting fields (fractionator) with
+// a grid inside each sampled field. If no image is open, only the header of
+// a TIFF file is read and the sampled fields are exported from the file.
+public class FractionatorSampling implements PlugIn, DialogListener {
+	private final static String[] locationChoices =
+		{ CombinedGridsPlugin.radiobuttons[CombinedGridsPlugin.RANDOM],
+		CombinedGridsPlugin.radiobuttons[CombinedGridsPlugin.FIXED] };
+	private static String location = locationChoices[0];
+	private static double fieldWidth, fieldHeight, stepX, stepY;
+	private static boolean exportFields = false;
+
+	private Random random = new Random(System.currentTimeMillis());
+	private CombinedGridsPlugin grids = new CombinedGridsPlugin();
+	private ImagePlus imp; // null when fields are sampled from a file
+	private FieldReader reader;
+	private String title;
+	private int width, height;
+	private double pixelWidth = 1.0, pixelHeight = 1.0;
+	private String units;
+	private String err = "";
+	private Rectangle[] fields;
+	private GeneralPath[] fieldGrids;
+	private String[] gridParameterArray;
+	private GridParameters[] gridRecordArray;
+
+	@Override
+	public void run(String arg) {
+		if (IJ.versionLessThan("1.47"))
+			return;
+
+		imp = WindowManager.getCurrentImage();
+		if (imp != null) {
+			title = imp.getTitle();
+			width = imp.getWidth();
+			height = imp.getHeight();
+			reader = new FieldReader(imp.getOriginalFileInfo(), imp);
+			Calibration cal = imp.getCalibration();
+			if (cal.scaled()) {
+				pixelWidth = cal.pixelWidth;
+				pixelHeight = cal.pixelHeight;
+				units = cal.getUnits();
+			} else
+				units = "pixels";
+			grids.setImage(imp);
+		} else if (!openFileInfo())
+			return;
+
+		showDialog();
+	}
+
+
+	// reads the header of a TIFF file, which may be a tiled BigTIFF of a
+	// whole-slide image, without reading its pixels
+	boolean openFileInfo() {
+		OpenDialog od = new OpenDialog("Whole-Slide Image (TIFF)...", "");
+		String directory = od.getDirectory();
+		String fileName = od.getFileName();
+		if (fileName == null)
+			return false;
+
+		reader = new FieldReader(directory, fileName);
+		if (reader.getUnsupportedFormat() != null) {
+			IJ.error("Fractionator", fileName + ":\n" + reader.getUnsupportedFormat()
+					+ "\nFields are read from uncompressed TIFF and BigTIFF files.");
+			return false;
+		}
+
+		title = fileName;
+		width = reader.getWidth();
+		height = reader.getHeight();
+		units = reader.getUnit();
+		if (!"pixels".equals(units)) {
+			pixelWidth = reader.getPixelWidth();
+			pixelHeight = reader.getPixelHeight();
+		}
+		return true;
+	}
+
+
+	void showDialog() {
+		int places = "pixels".equals(units) ? 0 : 2;
+		double imageWidth = width * pixelWidth;
+		double imageHeight = height * pixelHeight;
+		if (!(fieldWidth > 0.0) || fieldWidth > imageWidth
+				|| !(fieldHeight > 0.0) || fieldHeight > imageHeight
+				|| !(stepX > 0.0) || !(stepY > 0.0)) {
+			// default to 25 fields of 1/20 of the image, also after an invalid
+			// number (NaN) was left by the previous dialog
+			fieldWidth = imageWidth / 20.0;
+			fieldHeight = imageHeight / 20.0;
+			stepX = imageWidth / 5.0;
+			stepY = imageHeight / 5.0;
+		}
+		if (!(CombinedGridsPlugin.areaPerPoint > 0.0) ||
+				CombinedGridsPlugin.areaPerPoint > fieldWidth * fieldHeight)
+			// default to 9x9 grid in a field
+			CombinedGridsPlugin.areaPerPoint = fieldWidth * fieldHeight / 81.0;
+
+		GenericDialog gd = new GenericDialog("Fractionator...");
+		gd.addNumericField("Field Width:", fieldWidth, places, 8, units);
+		gd.addNumericField("Field Height:", fieldHeight, places, 8, units);
+		gd.addNumericField("Step X:", stepX, places, 8, units);
+		gd.addNumericField("Step Y:", stepY, places, 8, units);
+		gd.addRadioButtonGroup("Field and Grid Location", locationChoices, 2, 1, location);
+		gd.addChoice("Grid Type:", CombinedGridsPlugin.types, CombinedGridsPlugin.type);
+		gd.addNumericField("Area per Point:", CombinedGridsPlugin.areaPerPoint,
+				places, 6, units + "^2");
+		gd.addChoice("Ratio:", CombinedGridsPlugin.ratioChoices,
+				CombinedGridsPlugin.gridRatio);
+		gd.addChoice("Color:", CombinedGridsPlugin.colors, CombinedGridsPlugin.color);
+		gd.addCheckbox("Export sampled fields as TIFF files", exportFields);
+
+		if (imp != null)
+			gd.addDialogListener(this);
+		gd.showDialog();
+
+		if (gd.wasCanceled()) {
+			if (imp != null)
+				GridSnapshots.restore(imp);
+			return;
+		}
+
+		if (imp == null) {
+			getParameters(gd);
+			if (!gd.invalidNumber())
+				layoutFields();
+		}
+		if (gd.invalidNumber() || ("".equals(err) && fields == null))
+			err = "Invalid number. \n";
+
+		if (!"".equals(err)) {
+			IJ.error("Fractionator", err);
+			if (imp != null)
+				GridSnapshots.restore(imp);
+			return;
+		}
+
+		if (imp != null) {
+			imp.setProperty(GridParameters.PROPERTY, gridRecordArray);
+			GridSnapshots.push(imp, gridRecordArray, "Fractionator " + fields.length
+					+ " fields, " + grids.getSettingsLabel());
+		}
+		CombinedGridsPlugin.showHistory(gridParameterArray);
+
+		if (exportFields)
+			exportFields();
+	}
+
+
+	// event control for the dialog box
+	@Override
+	public boolean dialogItemChanged(GenericDialog gd, AWTEvent e) {
+		getParameters(gd);
+
+		if (gd.invalidNumber()) {
+			// the fields of the previous numbers must not be used on OK
+			err = "Invalid number. \n";
+			fields = null;
+			IJ.showStatus(err);
+			return true;
+		}
+
+		layoutFields();
+
+		if (!"".equals(err)) {
+			IJ.showStatus(err);
+			return true;
+		}
+
+		showFields();
+		return true;
+	}
+
+
+	void getParameters(GenericDialog gd) {
+		fieldWidth = gd.getNextNumber();
+		fieldHeight = gd.getNextNumber();
+		stepX = gd.getNextNumber();
+		stepY = gd.getNextNumber();
+		location = gd.getNextRadioButton();
+		String type = gd.getNextChoice();
+		double areaPerPoint = gd.getNextNumber();
+		String gridRatio = gd.getNextChoice();
+		String color = gd.getNextChoice();
+		exportFields = gd.getNextBoolean();
+
+		grids.setGridSettings(type, areaPerPoint, gridRatio, color, location,
+				pixelWidth, pixelHeight, units);
+	}
+
+
+	// Places fields at every stepX and stepY. As in calculateFirstGrid() of
+	// CombinedGridsPlugin, the offset is random in [0, step); it is measured
+	// from the far edge of a field so that fields at the left and top borders
+	// are sampled with the same probability as the others.
+	void layoutFields() {
+		err = "";
+		IJ.showStatus(err);
+
+		int fieldW = (int) (fieldWidth / pixelWidth + 0.5);
+		int fieldH = (int) (fieldHeight / pixelHeight + 0.5);
+		double stepW = stepX / pixelWidth;
+		double stepH = stepY / pixelHeight;
+
+		if (Double.isNaN(fieldWidth) || Double.isNaN(fieldHeight)
+				|| fieldW < 1 || fieldH < 1)
+			err += "Field size too small. \n";
+		if (Double.isNaN(stepX) || Double.isNaN(stepY)
+				|| stepW < fieldW || stepH < fieldH)
+			err += "Step smaller than the field size. \n";
+		if (!"".equals(err))
+			return;
+
+		int xoff, yoff;
+		if (location.equals(locationChoices[0])) {
+			xoff = (int) (random.nextDouble() * stepW) - fieldW;
+			yoff = (int) (random.nextDouble() * stepH) - fieldH;
+		} else {
+			xoff = (int) ((stepW - fieldW) / 2.0 + 0.5);
+			yoff = (int) ((stepH - fieldH) / 2.0 + 0.5);
+		}
+
+		Rectangle image = new Rectangle(0, 0, width, height);
+		ArrayList<Rectangle> fieldList = new ArrayList<Rectangle>();
+		for (int v = 0; yoff + (int) (v * stepH) < height; v++) {
+			for (int h = 0; xoff + (int) (h * stepW) < width; h++) {
+				Rectangle field = new Rectangle(xoff + (int) (h * stepW),
+						yoff + (int) (v * stepH), fieldW, fieldH);
+				field = field.intersection(image);
+				if (!field.isEmpty())
+					fieldList.add(field);
+			}
+		}
+
+		fields = fieldList.toArray(new Rectangle[fieldList.size()]);
+		fieldGrids = new GeneralPath[fields.length];
+		gridParameterArray = new String[fields.length];
+		gridRecordArray = new GridParameters[fields.length];
+
+		String estimate = grids.checkCost(fieldW, fieldH, fields.length);
+		err = grids.getError();
+		if (!"".equals(err))
+			return;
+
+		for (int i = 0; i < fields.length; i++) {
+			fieldGrids[i] = grids.getFieldGridPath(fields[i].width, fields[i].height);
+			if (fieldGrids[i] == null) {
+				err = grids.getError();
+				return;
+			}
+			gridRecordArray[i] = grids.getGridRecord(0);
+			gridRecordArray[i].offsetX = fields[i].x;
+			gridRecordArray[i].offsetY = fields[i].y;
+			gridRecordArray[i].fieldNumber = i + 1;
+			gridParameterArray[i] = grids.getGridParameters(title, getFieldLabel(i));
+		}
+
+		IJ.showStatus(fields.length + " fields, sampling fraction "
+				+ IJ.d2s(fieldWidth * fieldHeight / (stepX * stepY), 4) + ", " + estimate);
+	}
+
+
+	String getFieldLabel(int index) {
+		return "field" + (index + 1) + "@" + fields[index].x + "," + fields[index].y;
+	}
+
+
+	void showFields() {
+		Roi[] rois = new Roi[fields.length * 2];
+		for (int i = 0; i < fields.length; i++) {
+			Roi frame = new Roi(fields[i]);
+			frame.setName("grid-frame" + (i + 1));
+			frame.setStrokeColor(grids.getColor());
+			rois[i * 2] = frame;
+
+			AffineTransform at =
+					AffineTransform.getTranslateInstance(fields[i].x, fields[i].y);
+			ShapeRoi gridRoi =
+					new ShapeRoi(fieldGrids[i].createTransformedShape(at));
+			gridRoi.setName("grid-field" + (i + 1));
+			gridRoi.setStrokeColor(grids.getColor());
+			rois[i * 2 + 1] = gridRoi;
+		}
+		grids.showGrid(rois);
+	}
+
+
+	// saves each field with its grid as an overlay
+	void exportFields() {
+		if (imp == null && !reader.readsFromDisk()) {
+			IJ.error("Fractionator", reader.getUnsupportedFormat());
+			return;
+		}
+
+		DirectoryChooser dc = new DirectoryChooser("Folder for Sampled Fields");
+		String directory = dc.getDirectory();
+		if (directory == null)
+			return;
+
+		String baseName = title;
+		if (baseName.lastIndexOf('.') > 0)
+			baseName = baseName.substring(0, baseName.lastIndexOf('.'));
+
+		for (int i = 0; i < fields.length; i++) {
+			IJ.showProgress(i, fields.length);
+
+			ImageProcessor ip;
+			try {
+				ip = reader.read(fields[i]);
+			} catch (IOException e) {
+				IJ.error("Fractionator", "Cannot read field " + (i + 1) + ":\n"
+						+ e.getMessage());
+				return;
+			}
+
+			ImagePlus fieldImp = new ImagePlus(baseName + "_field" + (i + 1), ip);
+			if (!"pixels".equals(units)) {
+				Calibration cal = fieldImp.getCalibration();
+				cal.pixelWidth = pixelWidth;
+				cal.pixelHeight = pixelHeight;
+				cal.setUnit(units);
+			}
+
+			ShapeRoi gridRoi = new ShapeRoi(fieldGrids[i]);
+			gridRoi.setName("grid");
+			gridRoi.setStrokeColor(grids.getColor());
+			Overlay ol = new Overlay();
+			ol.add(gridRoi);
+			fieldImp.setOverlay(ol);
+
+			new FileSaver(fieldImp).saveAsTiff(directory + fieldImp.getTitle() + ".tif");
+		}
+		IJ.showProgress(1.0);
+		IJ.showStatus(fields.length + " fields saved in " + directory);
+	}
+}
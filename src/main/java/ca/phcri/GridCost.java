@@ -0,0 +1,94 @@
+package ca.phcri;
+
+import ij.IJ;
+
+
+// Prediction of the number of points, path segments and memory of grids
+// before they are drawn. Segments are counted as in the draw methods of
+// CombinedGridsPlugin.
+class GridCost {
+	// Peak bytes of a segment, i.e. moveTo and lineTo, while a grid is made.
+	// A float path holds 2 x (2 floats + 1 segment type) = 18 bytes, and a
+	// double path 2 x (2 doubles + 1 segment type) = 34 bytes. The grid path,
+	// the Path2D.Double made by createTransformedShape in new ShapeRoi(path),
+	// the float path of the ShapeRoi and its clone on the overlay exist
+	// together. Arrays of a path grow by doubling, and copies keep the
+	// capacity, so each path may be twice as large as its segments.
+	final static int BYTES_PER_SEGMENT = 2 * (18 + 34 + 18 + 18);
+	// fraction of the maximum memory of ImageJ that grids may use
+	final static double MAX_MEMORY_FRACTION = 0.5;
+
+	long points, coarsePoints, segments;
+
+	GridCost(String type, int width, int height, double tileWidth,
+			double tileHeight, int coarseGridX, int coarseGridY, int nGrids,
+			boolean lightweight){
+		// the largest numbers of lines for any xstart and ystart
+		long linesV = (long) (width / tileWidth) + 1;
+		long linesH = (long) (height / tileHeight) + 1;
+		points = linesV * linesH;
+
+		if (GridParameters.hasCoarsePoints(type) && coarseGridX > 0 && coarseGridY > 0)
+			coarsePoints = ((linesV + coarseGridX - 1) / coarseGridX)
+					* ((linesH + coarseGridY - 1) / coarseGridY);
+
+		if (lightweight)
+			segments = linesV + linesH + 4 * coarsePoints;
+		else if (type.equals(CombinedGridsPlugin.types[CombinedGridsPlugin.POINTS]))
+			segments = 4 * points;
+		else if (type.equals(CombinedGridsPlugin.types[CombinedGridsPlugin.CROSSES]))
+			segments = 2 * points;
+		else if (type.equals(CombinedGridsPlugin.types[CombinedGridsPlugin.COMBINED]))
+			segments = 2 * points + 4 * coarsePoints;
+		else if (type.equals(CombinedGridsPlugin.types[CombinedGridsPlugin.DOUBLE_LATTICE]))
+			segments = linesV + linesH + 19 * coarsePoints;
+		else if (type.equals(CombinedGridsPlugin.types[CombinedGridsPlugin.LINES]))
+			segments = linesV + linesH;
+		else if (type.equals(CombinedGridsPlugin.types[CombinedGridsPlugin.HLINES]))
+			segments = linesH;
+		else if (type.equals(CombinedGridsPlugin.types[CombinedGridsPlugin.CYCLOIDS]))
+			segments = 16 * points;
+		else if (type.equals(CombinedGridsPlugin.types[CombinedGridsPlugin.HEXAGONAL]))
+			segments = 2 * points;
+		else if (type.equals(CombinedGridsPlugin.types[CombinedGridsPlugin.ISOTROPIC]))
+			segments = linesV + linesH;
+			// rotated lines are no more than lines across the width and height
+
+		if (type.equals(CombinedGridsPlugin.types[CombinedGridsPlugin.HLINES])
+				|| type.equals(CombinedGridsPlugin.types[CombinedGridsPlugin.ISOTROPIC]))
+			points = 0;
+
+		points *= nGrids;
+		coarsePoints *= nGrids;
+		segments *= nGrids;
+	}
+
+
+	// grid types whose points can be drawn as intersections of lines
+	static boolean hasLightweight(String type){
+		return GridParameters.hasCoarsePoints(type)
+				|| type.equals(CombinedGridsPlugin.types[CombinedGridsPlugin.CROSSES])
+				|| type.equals(CombinedGridsPlugin.types[CombinedGridsPlugin.POINTS]);
+	}
+
+	// the memory limit of the dialog, but no more than a fraction of the
+	// maximum memory of ImageJ
+	static double getMemoryLimit(double memoryLimit){
+		long maxMemory = IJ.maxMemory();
+		if (maxMemory <= 0)
+			return memoryLimit;
+		return Math.min(memoryLimit,
+				maxMemory * MAX_MEMORY_FRACTION / (1024 * 1024));
+	}
+
+	double getMegabytes(){
+		return (double) segments * BYTES_PER_SEGMENT / (1024 * 1024);
+	}
+
+	@Override
+	public String toString(){
+		return String.format("%,d", points) + " points, "
+				+ String.format("%,d", segments) + " segments, "
+				+ IJ.d2s(getMegabytes(), 1) + " MB";
+	}
+}
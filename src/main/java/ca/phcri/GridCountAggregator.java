@@ -0,0 +1,425 @@
+package ca.phcri;
+
+import ij.IJ;
+import ij.gui.GenericDialog;
+import ij.io.DirectoryChooser;
+import ij.io.OpenDialog;
+import ij.measure.ResultsTable;
+import ij.plugin.PlugIn;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+
+// Aggregates point counts of slices over a whole study. Tab or comma
+// separated files with the "Image" and "Slice" of the Grid History and two
+// count columns are read line by line, and only running sums are kept for
+// each image, animal and group. Volume density Vv = sum(P) / sum(Q) and the
+// coefficient of error (CE) of Gundersen and Jensen (1987, m = 0) are
+// calculated from the sums. Rows of an image or an animal should be in the
+// order of the sections.
+public class GridCountAggregator implements PlugIn {
+	// slices of hyperstacks and sampled fields as in the Grid History
+	private final static Pattern ZT_SLICE = Pattern.compile("z(\\d+)t(\\d+)");
+	private final static Pattern FIELD_SLICE = Pattern.compile("field(\\d+)@.*");
+
+	private final static String[] sources = { "Single File", "All Files in a Folder" };
+	private static String source = sources[1];
+	private static String imageColumn = "Image";
+	private static String sliceColumn = "Slice";
+	private static String countColumn = "P";
+	private static String referenceColumn = "Q";
+	private static String animalPattern = "^([^_]+)_";
+	private static String groupPattern = "";
+	private static boolean showImages = true;
+
+	private Pattern animalRegex, groupRegex;
+	private Map<String, Sums> images = new LinkedHashMap<String, Sums>();
+	private Map<String, Sums> animals = new LinkedHashMap<String, Sums>();
+	private Map<String, String> animalGroups = new LinkedHashMap<String, String>();
+	private int rows, skipped, unordered, unknownSlices;
+
+	// running sums of a series of sections
+	static class Sums {
+		final static int MIN_SECTIONS = 3;
+
+		int n;
+		double sumP, sumQ;
+		double sumPP, sumQQ, sumPQ; // A
+		double nextPP, nextQQ, nextPQ; // B, products of neighbouring sections
+		double secondPP, secondQQ, secondPQ; // C, products of sections at 2 apart
+		double p1, q1, p2, q2; // counts of the last two sections
+		long lastSlice = -1;
+
+		void add(double p, double q) {
+			if (n >= 1) {
+				nextPP += p * p1;
+				nextQQ += q * q1;
+				nextPQ += (p * q1 + q * p1) / 2;
+			}
+			if (n >= 2) {
+				secondPP += p * p2;
+				secondQQ += q * q2;
+				secondPQ += (p * q2 + q * p2) / 2;
+			}
+			sumP += p;
+			sumQ += q;
+			sumPP += p * p;
+			sumQQ += q * q;
+			sumPQ += p * q;
+			p2 = p1;
+			q2 = q1;
+			p1 = p;
+			q1 = q;
+			n++;
+		}
+
+		double getVv() {
+			return sumQ == 0 ? Double.NaN : sumP / sumQ;
+		}
+
+		// variance due to systematic sampling plus the noise of point counting
+		static double variance(double a, double b, double c, double noise) {
+			double systematic = (3 * (a - noise) - 4 * b + c) / 12;
+			return Math.max(systematic, 0) + noise;
+		}
+
+		// The estimator needs at least 3 sections. An image with one grid for
+		// all slices has only one row, and its CE is NaN.
+		double getCE() {
+			if (n < MIN_SECTIONS || sumP == 0)
+				return Double.NaN;
+			return Math.sqrt(variance(sumPP, nextPP, secondPP, sumP)) / sumP;
+		}
+
+		// As points hitting the structure also hit the reference, the noise of
+		// the covariance is sum(P).
+		double getVvCE() {
+			if (n < MIN_SECTIONS || sumP == 0 || sumQ == 0)
+				return Double.NaN;
+			double varP = variance(sumPP, nextPP, secondPP, sumP);
+			double varQ = variance(sumQQ, nextQQ, secondQQ, sumQ);
+			double cov = (3 * (sumPQ - sumP) - 4 * nextPQ + secondPQ) / 12 + sumP;
+			double ce2 = varP / (sumP * sumP) + varQ / (sumQ * sumQ)
+					- 2 * cov / (sumP * sumQ);
+			return Math.sqrt(Math.max(ce2, 0));
+		}
+	}
+
+	@Override
+	public void run(String arg) {
+		if (IJ.versionLessThan("1.47"))
+			return;
+		if (!showDialog())
+			return;
+
+		File[] files = getFiles();
+		if (files == null)
+			return;
+
+		for (int i = 0; i < files.length; i++) {
+			IJ.showProgress(i, files.length);
+			IJ.showStatus("Reading " + files[i].getName());
+			try {
+				read(files[i]);
+			} catch (IOException e) {
+				IJ.error("Grid Count Aggregator", "Cannot read " + files[i].getName()
+						+ ":\n" + e.getMessage());
+				return;
+			}
+		}
+		IJ.showProgress(1.0);
+
+		showResults();
+		IJ.showStatus(rows + " rows of " + files.length + " files, "
+				+ skipped + " rows skipped, " + unordered + " slices out of order, "
+				+ unknownSlices + " slices not recognized");
+	}
+
+
+	boolean showDialog() {
+		GenericDialog gd = new GenericDialog("Grid Count Aggregator...");
+		gd.addChoice("Source:", sources, source);
+		gd.addStringField("Image Column:", imageColumn, 12);
+		gd.addStringField("Slice Column:", sliceColumn, 12);
+		gd.addStringField("Structure Count Column (P):", countColumn, 12);
+		gd.addStringField("Reference Count Column (Q):", referenceColumn, 12);
+		gd.addStringField("Animal from Image (regex):", animalPattern, 12);
+		gd.addStringField("Group from Image (regex):", groupPattern, 12);
+		gd.addMessage("The first group of a regex is used if it has one.\n"
+				+ "\"Animal\" and \"Group\" columns are used if they exist.");
+		gd.addCheckbox("Show each image", showImages);
+		gd.showDialog();
+		if (gd.wasCanceled())
+			return false;
+
+		source = gd.getNextChoice();
+		imageColumn = gd.getNextString().trim();
+		sliceColumn = gd.getNextString().trim();
+		countColumn = gd.getNextString().trim();
+		referenceColumn = gd.getNextString().trim();
+		animalPattern = gd.getNextString();
+		groupPattern = gd.getNextString();
+		showImages = gd.getNextBoolean();
+
+		try {
+			animalRegex = Pattern.compile(animalPattern);
+			groupRegex = Pattern.compile(groupPattern);
+		} catch (Exception e) {
+			IJ.error("Grid Count Aggregator", "Invalid regex:\n" + e.getMessage());
+			return false;
+		}
+		return true;
+	}
+
+
+	File[] getFiles() {
+		if (source.equals(sources[0])) {
+			OpenDialog od = new OpenDialog("Counts of Slices...", "");
+			if (od.getFileName() == null)
+				return null;
+			return new File[] { new File(od.getDirectory(), od.getFileName()) };
+		}
+
+		DirectoryChooser dc = new DirectoryChooser("Folder of Counts");
+		if (dc.getDirectory() == null)
+			return null;
+		File[] files = new File(dc.getDirectory()).listFiles();
+		if (files == null)
+			return null;
+
+		int n = 0;
+		for (File file : files)
+			if (isTable(file))
+				files[n++] = file;
+		files = Arrays.copyOf(files, n);
+		Arrays.sort(files);
+		return files;
+	}
+
+	boolean isTable(File file) {
+		String name = file.getName().toLowerCase();
+		return file.isFile() && (name.endsWith(".txt") || name.endsWith(".csv")
+				|| name.endsWith(".xls") || name.endsWith(".tsv"));
+	}
+
+
+	void read(File file) throws IOException {
+		BufferedReader br = new BufferedReader(new FileReader(file));
+		try {
+			String line = br.readLine();
+			if (line == null)
+				return;
+
+			char separator = line.indexOf('\t') >= 0 ? '\t' : ',';
+			String[] headings = split(line, separator);
+			int image = find(headings, imageColumn);
+			int slice = find(headings, sliceColumn);
+			int count = find(headings, countColumn);
+			int reference = find(headings, referenceColumn);
+			int animal = find(headings, "Animal");
+			int group = find(headings, "Group");
+
+			if (image < 0 || count < 0 || reference < 0) {
+				IJ.log(file.getName() + ": no \"" + imageColumn + "\", \""
+						+ countColumn + "\" or \"" + referenceColumn + "\" column");
+				return;
+			}
+
+			while ((line = br.readLine()) != null) {
+				String[] values = split(line, separator);
+				rows++;
+				if (values.length < headings.length) {
+					skipped++;
+					continue;
+				}
+
+				double p, q;
+				try {
+					p = Double.parseDouble(values[count].trim());
+					q = Double.parseDouble(values[reference].trim());
+				} catch (NumberFormatException e) {
+					skipped++;
+					continue;
+				}
+
+				String title = values[image].trim();
+				String animalName = animal >= 0 ?
+						values[animal].trim() : match(animalRegex, title);
+				String groupName = group >= 0 ?
+						values[group].trim() : match(groupRegex, title);
+
+				Sums imageSums = getSums(images, title);
+				if (slice >= 0)
+					checkOrder(imageSums, values[slice].trim());
+				imageSums.add(p, q);
+				getSums(animals, animalName).add(p, q);
+				animalGroups.put(animalName, groupName);
+			}
+		} finally {
+			br.close();
+		}
+	}
+
+	// splits a line at separators outside double quotes, so that an image
+	// title with a comma can be quoted as in CSV files
+	static String[] split(String line, char separator) {
+		ArrayList<String> values = new ArrayList<String>();
+		StringBuilder value = new StringBuilder();
+		boolean quoted = false;
+		for (int i = 0; i < line.length(); i++) {
+			char c = line.charAt(i);
+			if (c == '"') {
+				if (quoted && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+					value.append(c); // "" in quotes
+					i++;
+				} else
+					quoted = !quoted;
+			} else if (c == separator && !quoted) {
+				values.add(value.toString());
+				value.setLength(0);
+			} else
+				value.append(c);
+		}
+		values.add(value.toString());
+		return values.toArray(new String[values.size()]);
+	}
+
+	int find(String[] headings, String name) {
+		for (int i = 0; i < headings.length; i++)
+			if (headings[i].trim().equalsIgnoreCase(name))
+				return i;
+		return -1;
+	}
+
+	String match(Pattern pattern, String title) {
+		if (pattern.pattern().length() == 0)
+			return "All";
+		Matcher m = pattern.matcher(title);
+		if (!m.find())
+			return "None";
+		return m.groupCount() > 0 ? m.group(1) : m.group();
+	}
+
+	Sums getSums(Map<String, Sums> map, String key) {
+		Sums sums = map.get(key);
+		if (sums == null) {
+			sums = new Sums();
+			map.put(key, sums);
+		}
+		return sums;
+	}
+
+	// counts slices of an image which are not in ascending order, and those
+	// whose order is unknown
+	void checkOrder(Sums sums, String slice) {
+		if (slice.equals("All"))
+			return;
+		long order = getSliceOrder(slice);
+		if (order < 0) {
+			unknownSlices++;
+			return;
+		}
+		if (order < sums.lastSlice)
+			unordered++;
+		sums.lastSlice = order;
+	}
+
+	// Order of a slice number, of "z[Z]t[T]" of a hyperstack by T and then Z,
+	// or of "field[number]@[x],[y]" of a sampled field. Returns -1 for
+	// other forms.
+	static long getSliceOrder(String slice) {
+		try {
+			Matcher m = ZT_SLICE.matcher(slice);
+			if (m.matches())
+				return (Long.parseLong(m.group(2)) << 32) + Long.parseLong(m.group(1));
+			m = FIELD_SLICE.matcher(slice);
+			if (m.matches())
+				return Long.parseLong(m.group(1));
+			return Long.parseLong(slice);
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+
+	// Groups are summarized by animals: the mean and coefficient of variation
+	// (CV) of Vv, and the mean CE of Vv as root mean square of the animals
+	// which have a CE.
+	void showResults() {
+		ResultsTable rt = new ResultsTable();
+
+		if (showImages)
+			for (Map.Entry<String, Sums> e : images.entrySet())
+				addRow(rt, "Image", e.getKey(), e.getValue());
+
+		for (Map.Entry<String, Sums> e : animals.entrySet())
+			addRow(rt, "Animal", e.getKey(), e.getValue());
+
+		Map<String, double[]> groups = new LinkedHashMap<String, double[]>();
+		for (Map.Entry<String, Sums> e : animals.entrySet()) {
+			String group = animalGroups.get(e.getKey());
+			double[] g = groups.get(group);
+			if (g == null) {
+				g = new double[7];
+				// n, sum P, sum Q, sum Vv, sum Vv^2, sum CE^2, n with CE
+				groups.put(group, g);
+			}
+			Sums sums = e.getValue();
+			double vv = sums.getVv();
+			double ce = sums.getVvCE();
+			if (Double.isNaN(vv))
+				continue;
+			g[0]++;
+			g[1] += sums.sumP;
+			g[2] += sums.sumQ;
+			g[3] += vv;
+			g[4] += vv * vv;
+			if (!Double.isNaN(ce)) {
+				g[5] += ce * ce;
+				g[6]++;
+			}
+		}
+
+		for (Map.Entry<String, double[]> e : groups.entrySet()) {
+			double[] g = e.getValue();
+			double mean = g[0] == 0 ? Double.NaN : g[3] / g[0];
+			double sd = g[0] < 2 ? Double.NaN :
+					Math.sqrt(Math.max(g[4] - g[3] * g[3] / g[0], 0) / (g[0] - 1));
+
+			rt.incrementCounter();
+			rt.addValue("Level", "Group");
+			rt.addValue("Name", e.getKey());
+			rt.addValue("n", g[0]);
+			rt.addValue("Sum P", g[1]);
+			rt.addValue("Sum Q", g[2]);
+			rt.addValue("Vv", mean);
+			rt.addValue("CE(P)", Double.NaN);
+			rt.addValue("CE(Vv)", g[6] == 0 ? Double.NaN : Math.sqrt(g[5] / g[6]));
+			rt.addValue("CV(Vv)", sd / mean);
+		}
+
+		rt.show("Grid Count Summary");
+	}
+
+	void addRow(ResultsTable rt, String level, String name, Sums sums) {
+		rt.incrementCounter();
+		rt.addValue("Level", level);
+		rt.addValue("Name", name);
+		rt.addValue("n", sums.n);
+		rt.addValue("Sum P", sums.sumP);
+		rt.addValue("Sum Q", sums.sumQ);
+		rt.addValue("Vv", sums.getVv());
+		rt.addValue("CE(P)", sums.getCE());
+		rt.addValue("CE(Vv)", sums.getVvCE());
+		rt.addValue("CV(Vv)", Double.NaN);
+	}
+}
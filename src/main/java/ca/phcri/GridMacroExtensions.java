@@ -0,0 +1,124 @@
+package ca.phcri;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.WindowManager;
+import ij.macro.ExtensionDescriptor;
+import ij.macro.Functions;
+import ij.macro.MacroExtension;
+import ij.plugin.PlugIn;
+
+
+// Macro functions to access grid points of the current plane. Points are
+// calculated from the grid parameters without making the grid shape.
+// Usage in a macro:
+//   run("Grid Macro Extensions");
+//   Ext.getGridPointCount(nFine, nCoarse);
+//   for (i = 0; i < nFine; i++) { Ext.getGridPoint(i, x, y); ... }
+public class GridMacroExtensions implements PlugIn, MacroExtension {
+	private final static int[] countArgs = { ARG_OUTPUT + ARG_NUMBER, ARG_OUTPUT + ARG_NUMBER };
+	private final static int[] pointArgs =
+		{ ARG_NUMBER, ARG_OUTPUT + ARG_NUMBER, ARG_OUTPUT + ARG_NUMBER };
+	private final static int[] rectCountArgs =
+		{ ARG_NUMBER, ARG_NUMBER, ARG_NUMBER, ARG_NUMBER,
+		ARG_OUTPUT + ARG_NUMBER, ARG_OUTPUT + ARG_NUMBER };
+	private final static int[] rectPointArgs =
+		{ ARG_NUMBER, ARG_NUMBER, ARG_NUMBER, ARG_NUMBER, ARG_NUMBER,
+		ARG_OUTPUT + ARG_NUMBER, ARG_OUTPUT + ARG_NUMBER };
+
+	private ExtensionDescriptor[] extensions = {
+			new ExtensionDescriptor("getGridPointCount", countArgs, this),
+			new ExtensionDescriptor("getGridPoint", pointArgs, this),
+			new ExtensionDescriptor("getGridCoarsePoint", pointArgs, this),
+			new ExtensionDescriptor("getGridPointCountInRect", rectCountArgs, this),
+			new ExtensionDescriptor("getGridPointInRect", rectPointArgs, this),
+			new ExtensionDescriptor("getGridCoarsePointInRect", rectPointArgs, this) };
+
+	@Override
+	public void run(String arg) {
+		if (IJ.versionLessThan("1.47"))
+			return;
+		if (!IJ.macroRunning()) {
+			IJ.error("Grid Macro Extensions",
+					"Cannot install extensions from outside a macro.");
+			return;
+		}
+		Functions.registerExtensions(this);
+	}
+
+	@Override
+	public ExtensionDescriptor[] getExtensionFunctions() {
+		return extensions;
+	}
+
+	// Points of all grids on the current plane, e.g. grids of sampled fields,
+	// are numbered in series. Coordinates of a point out of range are NaN.
+	@Override
+	public String handleExtension(String name, Object[] args) {
+		ImagePlus imp = WindowManager.getCurrentImage();
+		GridParameters[] grids = imp == null ?
+				new GridParameters[0] : GridParameters.getCurrentGrids(imp);
+
+		if (name.equals("getGridPointCount")) {
+			long fine = 0, coarse = 0;
+			for (GridParameters p : grids) {
+				fine += p.getPointCount(false);
+				coarse += p.getPointCount(true);
+			}
+			setOutput(args[0], fine);
+			setOutput(args[1], coarse);
+		} else if (name.equals("getGridPoint") || name.equals("getGridCoarsePoint")) {
+			boolean coarse = name.equals("getGridCoarsePoint");
+			long index = (long) getNumber(args[0]);
+			double x = Double.NaN, y = Double.NaN;
+			for (GridParameters p : grids) {
+				long count = p.getPointCount(coarse);
+				if (index >= 0 && index < count) {
+					x = p.getPointX(index, coarse);
+					y = p.getPointY(index, coarse);
+					break;
+				}
+				index -= count;
+			}
+			setOutput(args[1], x);
+			setOutput(args[2], y);
+		} else if (name.equals("getGridPointCountInRect")) {
+			double rx = getNumber(args[0]), ry = getNumber(args[1]);
+			double rw = getNumber(args[2]), rh = getNumber(args[3]);
+			long fine = 0, coarse = 0;
+			for (GridParameters p : grids) {
+				fine += p.getPointCountInRect(rx, ry, rw, rh, false);
+				coarse += p.getPointCountInRect(rx, ry, rw, rh, true);
+			}
+			setOutput(args[4], fine);
+			setOutput(args[5], coarse);
+		} else if (name.equals("getGridPointInRect")
+				|| name.equals("getGridCoarsePointInRect")) {
+			boolean coarse = name.equals("getGridCoarsePointInRect");
+			double rx = getNumber(args[0]), ry = getNumber(args[1]);
+			double rw = getNumber(args[2]), rh = getNumber(args[3]);
+			long index = (long) getNumber(args[4]);
+			double x = Double.NaN, y = Double.NaN;
+			for (GridParameters p : grids) {
+				long count = p.getPointCountInRect(rx, ry, rw, rh, coarse);
+				if (index >= 0 && index < count) {
+					x = p.getPointXInRect(rx, ry, rw, rh, index, coarse);
+					y = p.getPointYInRect(rx, ry, rw, rh, index, coarse);
+					break;
+				}
+				index -= count;
+			}
+			setOutput(args[5], x);
+			setOutput(args[6], y);
+		}
+		return null;
+	}
+
+	double getNumber(Object arg) {
+		return ((Double) arg).doubleValue();
+	}
+
+	void setOutput(Object arg, double value) {
+		((Double[]) arg)[0] = Double.valueOf(value);
+	}
+}
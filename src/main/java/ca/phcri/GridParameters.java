@@ -0,0 +1,256 @@
+package ca.phcri;
+
+import ij.ImagePlus;
+
+
+// Compact record of a grid overlaid on an image. Grid points are calculated
+// from these values without drawing the grid.
+class GridParameters {
+	// key of the image property holding the records of the overlaid grids
+	final static String PROPERTY = "CombinedGrids";
+
+	String type;
+	String color;
+	int position; // grid index as in the "Slice" of the history, 0 for all slices
+	int offsetX, offsetY; // upper left corner of the gridded area, e.g. a field
+	int fieldNumber; // number of a sampled field, 0 for a grid on a whole image
+	int width, height;
+	double tileWidth, tileHeight;
+	int xstart, ystart;
+	int xstartCoarse, ystartCoarse, coarseGridX, coarseGridY;
+	int linesV, linesH;
+	double angle; // in degrees, for Isotropic Lines
+	boolean lightweight; // points drawn as intersections of lines
+
+
+	// grid index of the current plane, which is the (Z, T) position for a
+	// hyperstack as grids are shared by all channels
+	static int getGridIndex(ImagePlus imp){
+		if (imp.isHyperStack())
+			return (imp.getFrame() - 1) * imp.getNSlices() + imp.getSlice();
+		return imp.getCurrentSlice();
+	}
+
+
+	// records of the grids shown on the current plane of an image
+	static GridParameters[] getCurrentGrids(ImagePlus imp){
+		Object property = imp.getProperty(PROPERTY);
+		if (!(property instanceof GridParameters[]))
+			return new GridParameters[0];
+
+		GridParameters[] records = (GridParameters[]) property;
+		int gridIndex = getGridIndex(imp);
+		int n = 0;
+		for (GridParameters p : records)
+			if (p != null && (p.position == 0 || p.position == gridIndex))
+				n++;
+
+		GridParameters[] current = new GridParameters[n];
+		n = 0;
+		for (GridParameters p : records)
+			if (p != null && (p.position == 0 || p.position == gridIndex))
+				current[n++] = p;
+		return current;
+	}
+
+
+	boolean hasPoints(){
+		return !type.equals(CombinedGridsPlugin.types[CombinedGridsPlugin.HLINES])
+				&& !type.equals(CombinedGridsPlugin.types[CombinedGridsPlugin.ISOTROPIC]);
+	}
+	
+	boolean isHexagonal(){
+		return type.equals(CombinedGridsPlugin.types[CombinedGridsPlugin.HEXAGONAL]);
+	}
+
+	boolean hasCoarsePoints(){
+		return hasCoarsePoints(type);
+	}
+
+	// grid types with coarse points, i.e. with a fine to coarse grid ratio
+	static boolean hasCoarsePoints(String type){
+		return type.equals(CombinedGridsPlugin.types[CombinedGridsPlugin.COMBINED])
+				|| type.equals(CombinedGridsPlugin.types[CombinedGridsPlugin.DOUBLE_LATTICE]);
+	}
+
+
+	// Points are numbered in the order they are drawn, i.e. column by column.
+	// Fine points of Lines and Double Lattice are the intersections of lines.
+	int getColumns(boolean coarse){
+		if (coarse)
+			return hasCoarsePoints() ? (linesV + coarseGridX - 1) / coarseGridX : 0;
+		return hasPoints() ? linesV : 0;
+	}
+
+	int getRows(boolean coarse){
+		if (coarse)
+			return hasCoarsePoints() ? (linesH + coarseGridY - 1) / coarseGridY : 0;
+		return hasPoints() ? linesH : 0;
+	}
+
+	long getPointCount(boolean coarse){
+		if (!coarse && isHexagonal()) {
+			long pair = getHexColumns(0) + getHexColumns(1);
+			return linesH / 2 * pair + linesH % 2 * getHexColumns(0);
+		}
+		return (long) getColumns(coarse) * getRows(coarse);
+	}
+
+	double getX(int column, boolean coarse){
+		if (coarse)
+			return offsetX + xstart + (xstartCoarse + column * coarseGridX) * tileWidth;
+		return offsetX + xstart + column * tileWidth;
+	}
+
+	double getY(int row, boolean coarse){
+		if (coarse)
+			return offsetY + ystart + (ystartCoarse + row * coarseGridY) * tileHeight;
+		return offsetY + ystart + row * tileHeight;
+	}
+
+	double getPointX(long index, boolean coarse){
+		if (!coarse && isHexagonal()) {
+			int row = getHexRow(index, 0, getHexColumns(0), getHexColumns(1));
+			int column = getHexColumn(index, getHexColumns(0), getHexColumns(1));
+			return getHexX(row, column);
+		}
+		return getX((int) (index / getRows(coarse)), coarse);
+	}
+
+	double getPointY(long index, boolean coarse){
+		if (!coarse && isHexagonal())
+			return getY(getHexRow(index, 0, getHexColumns(0), getHexColumns(1)), false);
+		return getY((int) (index % getRows(coarse)), coarse);
+	}
+
+
+	// Ranges of columns and rows of points within [x, x + w) and [y, y + h).
+	// The last one is smaller than the first one if there is no point.
+	int getFirstColumn(double x, boolean coarse){
+		double first = Math.ceil((x - getX(0, coarse)) / getStepX(coarse));
+		return (int) Math.max(first, 0);
+	}
+
+	int getLastColumn(double x, double w, boolean coarse){
+		double last = Math.ceil((x + w - getX(0, coarse)) / getStepX(coarse)) - 1;
+		return (int) Math.min(last, getColumns(coarse) - 1);
+	}
+
+	int getFirstRow(double y, boolean coarse){
+		double first = Math.ceil((y - getY(0, coarse)) / getStepY(coarse));
+		return (int) Math.max(first, 0);
+	}
+
+	int getLastRow(double y, double h, boolean coarse){
+		double last = Math.ceil((y + h - getY(0, coarse)) / getStepY(coarse)) - 1;
+		return (int) Math.min(last, getRows(coarse) - 1);
+	}
+
+	double getStepX(boolean coarse){
+		return coarse ? coarseGridX * tileWidth : tileWidth;
+	}
+
+	double getStepY(boolean coarse){
+		return coarse ? coarseGridY * tileHeight : tileHeight;
+	}
+
+	long getPointCountInRect(double x, double y, double w, double h, boolean coarse){
+		if (getPointCount(coarse) == 0)
+			return 0;
+		if (!coarse && isHexagonal())
+			return getHexPointCountInRect(x, y, w, h);
+		long columns = getLastColumn(x, w, coarse) - getFirstColumn(x, coarse) + 1;
+		long rows = getLastRow(y, h, coarse) - getFirstRow(y, coarse) + 1;
+		if (columns <= 0 || rows <= 0)
+			return 0;
+		return columns * rows;
+	}
+
+	double getPointXInRect(double x, double y, double w, double h, long index,
+			boolean coarse){
+		if (!coarse && isHexagonal()) {
+			int firstRow = getFirstRow(y, false);
+			int a = getHexColumnsInRect(x, w, firstRow);
+			int b = getHexColumnsInRect(x, w, firstRow + 1);
+			int row = getHexRow(index, firstRow, a, b);
+			return getHexX(row,
+					getFirstHexColumn(x, row) + getHexColumn(index, a, b));
+		}
+		long rows = getLastRow(y, h, coarse) - getFirstRow(y, coarse) + 1;
+		return getX(getFirstColumn(x, coarse) + (int) (index / rows), coarse);
+	}
+
+	double getPointYInRect(double x, double y, double w, double h, long index,
+			boolean coarse){
+		if (!coarse && isHexagonal()) {
+			int firstRow = getFirstRow(y, false);
+			int a = getHexColumnsInRect(x, w, firstRow);
+			int b = getHexColumnsInRect(x, w, firstRow + 1);
+			return getY(getHexRow(index, firstRow, a, b), false);
+		}
+		long rows = getLastRow(y, h, coarse) - getFirstRow(y, coarse) + 1;
+		return getY(getFirstRow(y, coarse) + (int) (index % rows), coarse);
+	}
+
+
+	// The hexagonal lattice has every other row shifted by half a tile, so
+	// the number of points alternates between even and odd rows. Its points
+	// are numbered row by row.
+	static double getHexRowStart(int xstart, double tileWidth, int row){
+		double start = xstart;
+		if (row % 2 == 1) {
+			start += tileWidth / 2;
+			if (start >= tileWidth)
+				start -= tileWidth;
+		}
+		return start;
+	}
+
+	static int getHexRowColumns(int width, double rowStart, double tileWidth){
+		return (int) ((width - rowStart) / tileWidth) + 1;
+	}
+
+	int getHexColumns(int row){
+		return getHexRowColumns(width, getHexRowStart(xstart, tileWidth, row), tileWidth);
+	}
+
+	double getHexX(int row, int column){
+		return offsetX + getHexRowStart(xstart, tileWidth, row) + column * tileWidth;
+	}
+
+	// row of a point among rows from firstRow, which have a and b points
+	// alternately
+	int getHexRow(long index, int firstRow, int a, int b){
+		int row = firstRow + (int) (index / (a + b)) * 2;
+		if (index % (a + b) >= a)
+			row++;
+		return row;
+	}
+
+	int getHexColumn(long index, int a, int b){
+		long rest = index % (a + b);
+		return (int) (rest >= a ? rest - a : rest);
+	}
+
+	int getFirstHexColumn(double x, int row){
+		double first = Math.ceil((x - getHexX(row, 0)) / tileWidth);
+		return (int) Math.max(first, 0);
+	}
+
+	int getHexColumnsInRect(double x, double w, int row){
+		double last = Math.ceil((x + w - getHexX(row, 0)) / tileWidth) - 1;
+		last = Math.min(last, getHexColumns(row) - 1);
+		return (int) Math.max(last - getFirstHexColumn(x, row) + 1, 0);
+	}
+
+	long getHexPointCountInRect(double x, double y, double w, double h){
+		int firstRow = getFirstRow(y, false);
+		int lastRow = getLastRow(y, h, false);
+		if (lastRow < firstRow)
+			return 0;
+
+		int rows = lastRow - firstRow + 1;
+		return (long) (rows + 1) / 2 * getHexColumnsInRect(x, w, firstRow)
+				+ (long) rows / 2 * getHexColumnsInRect(x, w, firstRow + 1);
+	}
+}
@@ -0,0 +1,166 @@
+package ca.phcri;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.gui.GenericDialog;
+import ij.gui.Roi;
+import ij.plugin.PlugIn;
+
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+
+
+// Undo, redo and comparison of grids overlaid on an image. Each grid
+// configuration is kept as its parameter records, and grids are drawn again
+// from the records when they are shown.
+public class GridSnapshots implements PlugIn {
+	// key of the image property holding the snapshots of the image
+	final static String PROPERTY = "CombinedGrids.snapshots";
+	private final static int MAX_SNAPSHOTS = 100;
+	private static String compareColor = "Red";
+
+	private ImagePlus imp;
+
+	// snapshots of an image, and the one shown (-1 for no grid)
+	private static class Snapshots {
+		ArrayList<GridParameters[]> records = new ArrayList<GridParameters[]>();
+		ArrayList<String> labels = new ArrayList<String>();
+		int current = -1;
+	}
+
+	@Override
+	public void run(String arg) {
+		if (IJ.versionLessThan("1.47"))
+			return;
+		imp = IJ.getImage();
+
+		Snapshots snapshots = getSnapshots(imp);
+		if (snapshots.records.size() == 0) {
+			IJ.error("Grid Snapshots", "No grid has been overlaid on this image.");
+			return;
+		}
+
+		if (arg.equals("undo")) {
+			if (snapshots.current < 0) {
+				IJ.showStatus("Nothing to undo");
+				return;
+			}
+			show(snapshots, snapshots.current - 1);
+		} else if (arg.equals("redo")) {
+			if (snapshots.current >= snapshots.records.size() - 1) {
+				IJ.showStatus("Nothing to redo");
+				return;
+			}
+			show(snapshots, snapshots.current + 1);
+		} else if (arg.equals("compare"))
+			compare(snapshots);
+	}
+
+
+	// adds grids just overlaid on an image, discarding snapshots undone
+	static void push(ImagePlus imp, GridParameters[] records, String label) {
+		Snapshots snapshots = getSnapshots(imp);
+
+		while (snapshots.records.size() > snapshots.current + 1) {
+			snapshots.records.remove(snapshots.records.size() - 1);
+			snapshots.labels.remove(snapshots.labels.size() - 1);
+		}
+		if (snapshots.records.size() == MAX_SNAPSHOTS) {
+			snapshots.records.remove(0);
+			snapshots.labels.remove(0);
+		}
+
+		DateFormat df = new SimpleDateFormat("HH:mm:ss");
+		snapshots.records.add(records);
+		snapshots.labels.add(df.format(new Date()) + " " + label);
+		snapshots.current = snapshots.records.size() - 1;
+	}
+
+
+	// Draws the current snapshot again when a new grid is canceled, so that
+	// the grid on the image matches the position of undo and redo. The grid
+	// is removed if there is no snapshot.
+	static void restore(ImagePlus imp) {
+		GridSnapshots gs = new GridSnapshots();
+		gs.imp = imp;
+		Snapshots snapshots = getSnapshots(imp);
+		gs.show(snapshots, snapshots.current);
+	}
+
+
+	private static Snapshots getSnapshots(ImagePlus imp) {
+		Object property = imp.getProperty(PROPERTY);
+		if (property instanceof Snapshots)
+			return (Snapshots) property;
+
+		Snapshots snapshots = new Snapshots();
+		imp.setProperty(PROPERTY, snapshots);
+		return snapshots;
+	}
+
+
+	void show(Snapshots snapshots, int index) {
+		CombinedGridsPlugin grids = new CombinedGridsPlugin();
+		grids.setImage(imp);
+
+		if (index < 0) {
+			grids.showGrid(null);
+			imp.setProperty(GridParameters.PROPERTY, null);
+			IJ.showStatus("No grid");
+		} else {
+			GridParameters[] records = snapshots.records.get(index);
+			grids.showGrid(grids.getGridRois(records));
+			imp.setProperty(GridParameters.PROPERTY, records);
+			IJ.showStatus(snapshots.labels.get(index));
+		}
+		snapshots.current = index;
+	}
+
+
+	// shows two snapshots together, the second one in another color
+	void compare(Snapshots snapshots) {
+		int n = snapshots.records.size();
+		String[] labels = new String[n];
+		for (int i = 0; i < n; i++)
+			labels[i] = (i + 1) + ": " + snapshots.labels.get(i);
+
+		int first = snapshots.current < 0 ? n - 1 : snapshots.current;
+		int second = first > 0 ? first - 1 : first;
+
+		GenericDialog gd = new GenericDialog("Compare Grids...");
+		gd.addChoice("First Grid:", labels, labels[first]);
+		gd.addChoice("Second Grid:", labels, labels[second]);
+		gd.addChoice("Color of the Second Grid:", CombinedGridsPlugin.colors,
+				compareColor);
+		gd.showDialog();
+		if (gd.wasCanceled())
+			return;
+
+		first = gd.getNextChoiceIndex();
+		second = gd.getNextChoiceIndex();
+		compareColor = gd.getNextChoice();
+
+		CombinedGridsPlugin grids = new CombinedGridsPlugin();
+		grids.setImage(imp);
+		Roi[] firstRois = grids.getGridRois(snapshots.records.get(first));
+		Roi[] secondRois = grids.getGridRois(snapshots.records.get(second));
+
+		Roi[] rois = new Roi[firstRois.length + secondRois.length];
+		System.arraycopy(firstRois, 0, rois, 0, firstRois.length);
+		for (int i = 0; i < secondRois.length; i++) {
+			Roi roi = secondRois[i];
+			if (roi != null) {
+				roi.setName(roi.getName().replaceFirst("grid", "grid-compare"));
+				roi.setStrokeColor(CombinedGridsPlugin.getColor(compareColor));
+			}
+			rois[firstRois.length + i] = roi;
+		}
+		grids.showGrid(rois);
+
+		// grid points are those of the first grid
+		imp.setProperty(GridParameters.PROPERTY, snapshots.records.get(first));
+		snapshots.current = first;
+	}
+}